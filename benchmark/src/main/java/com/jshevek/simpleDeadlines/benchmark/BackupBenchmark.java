@@ -0,0 +1,155 @@
+package com.jshevek.simpleDeadlines.benchmark;
+
+import com.jshevek.simpleDeadlines.core.BinaryBackup;
+import com.jshevek.simpleDeadlines.core.Deadline;
+import com.jshevek.simpleDeadlines.core.Levels;
+import com.jshevek.simpleDeadlines.core.ShareUriCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole backups, encoded and decoded in memory in both formats. The text backup benchmarks are the baseline of the
+ * binary ones: same deadlines, written and read the way DeadlinesUtils does, one share URI per line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class BackupBenchmark {
+    private static final String[] WORDS = {"Pay", "rent", "Dentist", "report", "tax", "Call", "mum", "été", "car",
+            "review", "meeting", "project", "renew", "passport", "#42", "(draft)"};
+    private static final String[] GROUPS = {null, "Work", "Home", "Administration", "Santé", "Side project"};
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    private Deadline[] _deadlines;
+    private String[] _lines;
+    private byte[] _text;
+    private byte[] _binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        long dueDate = System.currentTimeMillis();
+        ShareUriCodec codec = new ShareUriCodec();
+
+        _deadlines = new Deadline[rows];
+        _lines = new String[rows];
+        for (int i = 0; i < rows; ++i) {
+            String label = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+            dueDate += random.nextInt(4) * Levels.DAY_IN_MILLIS / 4;
+            _deadlines[i] = new Deadline(label, GROUPS[random.nextInt(GROUPS.length)], dueDate, random.nextBoolean());
+            _deadlines[i].Id = i + 1;
+            _lines[i] = codec.encode(_deadlines[i]);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeText(out);
+        _text = out.toByteArray();
+
+        out = new ByteArrayOutputStream();
+        writeBinary(out);
+        _binary = out.toByteArray();
+    }
+
+    @Benchmark
+    public void encodeText(Blackhole blackhole) {
+        ShareUriCodec codec = new ShareUriCodec();
+        StringBuilder line = new StringBuilder();
+        for (Deadline deadline : _deadlines) {
+            line.setLength(0);
+            blackhole.consume(codec.encode(deadline, line).length());
+        }
+    }
+
+    @Benchmark
+    public void decodeText(Blackhole blackhole) {
+        ShareUriCodec codec = new ShareUriCodec();
+        Deadline deadline = new Deadline();
+        for (String line : _lines)
+            blackhole.consume(codec.decode(line, deadline).DueDate);
+    }
+
+    @Benchmark
+    public void encodeTextBackup() throws IOException {
+        writeText(new NullOutputStream());
+    }
+
+    @Benchmark
+    public void decodeTextBackup(Blackhole blackhole) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(_text), "UTF-8"));
+        ShareUriCodec codec = new ShareUriCodec();
+        Deadline deadline = new Deadline();
+        // Skip the database ID.
+        String line = in.readLine();
+        while ((line = in.readLine()) != null)
+            blackhole.consume(codec.decode(line, deadline).DueDate);
+    }
+
+    @Benchmark
+    public void encodeBinary() throws IOException {
+        writeBinary(new NullOutputStream());
+    }
+
+    @Benchmark
+    public void decodeBinary(Blackhole blackhole) throws IOException {
+        BinaryBackup.Reader reader = new BinaryBackup.Reader(new ByteArrayInputStream(_binary));
+        while (reader.next())
+            blackhole.consume(reader.DueDate);
+        reader.finish();
+    }
+
+    private void writeText(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        ShareUriCodec codec = new ShareUriCodec();
+        StringBuilder line = new StringBuilder();
+        writer.append("#0");
+        for (Deadline deadline : _deadlines) {
+            line.setLength(0);
+            writer.append(codec.encode(deadline, line.append('\n')));
+        }
+        writer.flush();
+    }
+
+    private void writeBinary(OutputStream out) throws IOException {
+        BinaryBackup.Writer writer = new BinaryBackup.Writer(out, 0, _deadlines.length, 0);
+        for (Deadline deadline : _deadlines)
+            writer.write(deadline.Id, deadline.Label, deadline.Group, deadline.DueDate, deadline.Done);
+        writer.finish();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.jshevek.simpleDeadlines.benchmark;
+
+import com.jshevek.simpleDeadlines.core.DayClock;
+import com.jshevek.simpleDeadlines.core.LevelPolicy;
+import com.jshevek.simpleDeadlines.core.Levels;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Level mapping and day counting, once per bound list row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevelBenchmark {
+    private static final int SIZE = 1024;
+
+    /**
+     * The level to color map as it used to be looked up, colors replaced by plain numbers.
+     */
+    private static final Map<Integer, Integer> LEGACY_LEVELS = new LinkedHashMap<>();
+
+    static {
+        LEGACY_LEVELS.put(Levels.TODAY, 0);
+        LEGACY_LEVELS.put(Levels.URGENT, 1);
+        LEGACY_LEVELS.put(Levels.WORRYING, 2);
+        LEGACY_LEVELS.put(Levels.NICE, 3);
+        LEGACY_LEVELS.put(Levels.NEVERMIND, 4);
+    }
+
+    private final LevelPolicy _policy = new LevelPolicy(2, 5, 10, 30);
+    private DayClock _clock;
+    private int[] _days;
+    private long[] _times;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        _clock = new DayClock(now, TimeZone.getDefault());
+
+        _days = new int[SIZE];
+        _times = new long[SIZE];
+        for (int i = 0; i < SIZE; ++i) {
+            _days[i] = random.nextInt(60) - 20;
+            _times[i] = now + _days[i] * Levels.DAY_IN_MILLIS;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int dayCountToLvl() {
+        int sum = 0;
+        for (int days : _days)
+            sum += Levels.dayCountToLvl(days);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int levelOf() {
+        int sum = 0;
+        for (int days : _days)
+            sum += _policy.levelOf(days);
+        return sum;
+    }
+
+    /**
+     * Baseline: the implementation going through the boxed keys of the level map.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int dayCountToLvlLegacy() {
+        int sum = 0;
+        for (int days : _days)
+            sum += legacyDayCountToLvl(days);
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int dayCount() {
+        int sum = 0;
+        for (long time : _times)
+            sum += _clock.dayCount(time);
+        return sum;
+    }
+
+    /**
+     * Baseline: the day count building a calendar for every row.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int timeToDayCountLegacy() {
+        int sum = 0;
+        for (long time : _times)
+            sum += legacyTimeToDayCount(time);
+        return sum;
+    }
+
+    private static int legacyDayCountToLvl(int days) {
+        Integer[] keys = LEGACY_LEVELS.keySet().toArray(new Integer[]{});
+
+        for (int i = 0; i < keys.length - 1; ++i) {
+            if (days <= keys[i])
+                return keys[i];
+        }
+
+        return Levels.NEVERMIND;
+    }
+
+    private static int legacyTimeToDayCount(long time) {
+        Calendar today = Calendar.getInstance();
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        long todayDays = today.getTimeInMillis() / Levels.DAY_IN_MILLIS;
+        long deadlineDays = time / Levels.DAY_IN_MILLIS;
+
+        return (int) (deadlineDays - todayDays);
+    }
+}
@@ -0,0 +1,386 @@
+package com.jshevek.simpleDeadlines.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact backup format, as opposed to the one share URI per line text format.
+ * <p/>
+ * Layout, all integers being unsigned LEB128 varints unless stated otherwise:
+ * <ul>
+ * <li>Magic "SDB" followed by the version byte.</li>
+ * <li>ID of the database backed up, 0 if unknown. IDs of deadlines only mean something in that database.</li>
+ * <li>Row count, then deleted deadline count.</li>
+ * <li>Rows in blocks of up to 8, each block starting with one byte holding the done flags of its rows, lowest bit
+ * first.</li>
+ * <li>Row: group reference, label, due date, ID. The group reference is 0 for no group, the index of a group already
+ * seen starting from 1, or the next index followed by the name of a new group. The due date is the zigzag encoded
+ * difference with the due date of the previous row.</li>
+ * <li>IDs of the deleted deadlines.</li>
+ * <li>CRC32 of everything before it, 4 bytes big endian.</li>
+ * </ul>
+ * Strings are their UTF-8 length followed by their bytes. Version 1 backups have neither database ID, IDs nor
+ * deleted deadlines, they are still read.
+ */
+public final class BinaryBackup {
+    public static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+    private static final byte[] MAGIC = {'S', 'D', 'B', VERSION};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BLOCK_SIZE = 8;
+    /**
+     * Longest string accepted when reading, anything above comes from a corrupted file.
+     */
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private BinaryBackup() {
+    }
+
+    /**
+     * Check whether a stream starts with a binary backup, without consuming it.
+     *
+     * @param in Stream supporting mark and reset.
+     */
+    public static boolean isBinary(InputStream in) throws IOException {
+        byte[] head = new byte[MAGIC.length - 1];
+        in.mark(head.length);
+        try {
+            int read = 0;
+            while (read < head.length) {
+                int n = in.read(head, read, head.length - read);
+                if (n == -1)
+                    return false;
+                read += n;
+            }
+            return Arrays.equals(head, Arrays.copyOf(MAGIC, head.length));
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Write rows, then deleted deadlines, to a backup. Both counts have to be known up front.
+     */
+    public static final class Writer {
+        private final OutputStream _raw;
+        private final CheckedOutputStream _out;
+        private final int _count;
+        private final int _deletedCount;
+        private final Map<String, Integer> _groups = new HashMap<>();
+        private final String[] _labels = new String[BLOCK_SIZE];
+        private final String[] _blockGroups = new String[BLOCK_SIZE];
+        private final long[] _dueDates = new long[BLOCK_SIZE];
+        private final long[] _ids = new long[BLOCK_SIZE];
+        private int _doneFlags;
+        private int _pending;
+        private int _written;
+        private int _deletedWritten;
+        private long _lastDueDate;
+
+        /**
+         * @param databaseId ID of the database the deadlines come from, 0 if unknown.
+         */
+        public Writer(OutputStream out, long databaseId, int count, int deletedCount) throws IOException {
+            _raw = new BufferedOutputStream(out);
+            _out = new CheckedOutputStream(_raw, new CRC32());
+            _count = count;
+            _deletedCount = deletedCount;
+
+            _out.write(MAGIC);
+            writeVarint(_out, databaseId);
+            writeVarint(_out, count);
+            writeVarint(_out, deletedCount);
+        }
+
+        public void write(long id, String label, String group, long dueDate, boolean done) throws IOException {
+            if (_written + _pending == _count)
+                throw new IllegalStateException("More rows than announced. {count: " + _count + "}");
+            if (_deletedWritten > 0)
+                throw new IllegalStateException("Rows have to be written before deleted deadlines.");
+
+            _ids[_pending] = id;
+            _labels[_pending] = label;
+            _blockGroups[_pending] = group;
+            _dueDates[_pending] = dueDate;
+            if (done)
+                _doneFlags |= 1 << _pending;
+            if (++_pending == BLOCK_SIZE)
+                flushBlock();
+        }
+
+        /**
+         * Write the ID of a deleted deadline, once every row has been written.
+         */
+        public void writeDeleted(long id) throws IOException {
+            if (_deletedWritten == 0)
+                checkRowsWritten();
+            if (_deletedWritten == _deletedCount)
+                throw new IllegalStateException("More deleted deadlines than announced. {count: " + _deletedCount
+                        + "}");
+
+            writeVarint(_out, id);
+            ++_deletedWritten;
+        }
+
+        /**
+         * Write the checksum, then flush. Does not close the underlying stream.
+         */
+        public void finish() throws IOException {
+            checkRowsWritten();
+            if (_deletedWritten != _deletedCount)
+                throw new IllegalStateException("Fewer deleted deadlines than announced. {count: " + _deletedCount
+                        + ", written: " + _deletedWritten + "}");
+
+            long crc = _out.getChecksum().getValue();
+            _raw.write((int) (crc >>> 24));
+            _raw.write((int) (crc >>> 16));
+            _raw.write((int) (crc >>> 8));
+            _raw.write((int) crc);
+            _raw.flush();
+        }
+
+        private void checkRowsWritten() throws IOException {
+            flushBlock();
+            if (_written != _count)
+                throw new IllegalStateException("Fewer rows than announced. {count: " + _count + ", written: "
+                        + _written + "}");
+        }
+
+        private void flushBlock() throws IOException {
+            if (_pending == 0)
+                return;
+
+            _out.write(_doneFlags);
+            for (int i = 0; i < _pending; ++i) {
+                String group = _blockGroups[i];
+                if (group == null || group.isEmpty())
+                    writeVarint(_out, 0);
+                else {
+                    Integer ref = _groups.get(group);
+                    if (ref != null)
+                        writeVarint(_out, ref);
+                    else {
+                        ref = _groups.size() + 1;
+                        _groups.put(group, ref);
+                        writeVarint(_out, ref);
+                        writeString(_out, group);
+                    }
+                }
+
+                writeString(_out, _labels[i] == null ? "" : _labels[i]);
+                writeVarint(_out, zigzag(_dueDates[i] - _lastDueDate));
+                _lastDueDate = _dueDates[i];
+                writeVarint(_out, _ids[i]);
+            }
+
+            _written += _pending;
+            _pending = 0;
+            _doneFlags = 0;
+        }
+    }
+
+    /**
+     * Read the rows of a backup one at a time, then its deleted deadlines. The checksum can only be checked once
+     * everything has been read, see {@link #finish()}.
+     */
+    public static final class Reader {
+        private final InputStream _raw;
+        private final CheckedInputStream _in;
+        private final int _version;
+        private final long _databaseId;
+        private final int _count;
+        private final int _deletedCount;
+        private final List<String> _groups = new ArrayList<>();
+        private int _read;
+        private int _deletedRead;
+        private int _doneFlags;
+        private long _dueDate;
+
+        /**
+         * ID of the row, or of the deleted deadline read by {@link #nextDeleted()}. 0 in version 1 backups.
+         */
+        public long Id;
+        public String Label;
+        public String Group;
+        public long DueDate;
+        public boolean Done;
+
+        public Reader(InputStream in) throws IOException {
+            _raw = new BufferedInputStream(in);
+            _in = new CheckedInputStream(_raw, new CRC32());
+
+            byte[] magic = new byte[MAGIC.length];
+            readFully(_in, magic);
+            _version = magic[MAGIC.length - 1];
+            if (!Arrays.equals(Arrays.copyOf(magic, MAGIC.length - 1), Arrays.copyOf(MAGIC, MAGIC.length - 1))
+                    || _version < MIN_VERSION || _version > VERSION)
+                throw new IOException("Not a binary backup or unsupported version.");
+            _databaseId = _version >= 2 ? readVarint(_in) : 0;
+            _count = readCount(_in, "row");
+            _deletedCount = _version >= 2 ? readCount(_in, "deleted deadline") : 0;
+        }
+
+        /**
+         * @return ID of the database the deadlines come from, 0 if unknown.
+         */
+        public long getDatabaseId() {
+            return _databaseId;
+        }
+
+        public int getCount() {
+            return _count;
+        }
+
+        public int getDeletedCount() {
+            return _deletedCount;
+        }
+
+        /**
+         * Read the next row into the public fields.
+         *
+         * @return False once all rows have been read.
+         */
+        public boolean next() throws IOException {
+            if (_read == _count)
+                return false;
+
+            int index = _read % BLOCK_SIZE;
+            if (index == 0)
+                _doneFlags = readByte(_in);
+
+            long ref = readVarint(_in);
+            if (ref == 0)
+                Group = null;
+            else if (ref <= _groups.size())
+                Group = _groups.get((int) ref - 1);
+            else if (ref == _groups.size() + 1) {
+                Group = readString(_in);
+                _groups.add(Group);
+            } else
+                throw new IOException("Corrupted backup, unknown group. {row: " + _read + ", group: " + ref + "}");
+
+            Label = readString(_in);
+            _dueDate += unzigzag(readVarint(_in));
+            DueDate = _dueDate;
+            Done = (_doneFlags & (1 << index)) != 0;
+            Id = _version >= 2 ? readVarint(_in) : 0;
+
+            ++_read;
+            return true;
+        }
+
+        /**
+         * Read the ID of the next deleted deadline into {@link #Id}, every row has to be read first.
+         *
+         * @return False once all deleted deadlines have been read.
+         */
+        public boolean nextDeleted() throws IOException {
+            if (_read != _count)
+                throw new IllegalStateException("Rows left to read. {count: " + _count + ", read: " + _read + "}");
+            if (_deletedRead == _deletedCount)
+                return false;
+
+            Id = readVarint(_in);
+            ++_deletedRead;
+            return true;
+        }
+
+        /**
+         * Check the checksum, every row and deleted deadline has to be read first.
+         *
+         * @throws IOException If the backup is corrupted.
+         */
+        public void finish() throws IOException {
+            if (_read != _count)
+                throw new IllegalStateException("Rows left to read. {count: " + _count + ", read: " + _read + "}");
+            if (_deletedRead != _deletedCount)
+                throw new IllegalStateException("Deleted deadlines left to read. {count: " + _deletedCount
+                        + ", read: " + _deletedRead + "}");
+
+            long expected = _in.getChecksum().getValue();
+            long crc = ((long) readByte(_raw) << 24) | (readByte(_raw) << 16) | (readByte(_raw) << 8) | readByte(_raw);
+            if (crc != expected)
+                throw new IOException("Corrupted backup, checksum mismatch.");
+        }
+    }
+
+    private static int readCount(InputStream in, String what) throws IOException {
+        long count = readVarint(in);
+        if (count > Integer.MAX_VALUE)
+            throw new IOException("Corrupted backup, invalid " + what + " count. {count: " + count + "}");
+        return (int) count;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1)
+            throw new EOFException("Truncated backup.");
+        return b;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupted backup, varint too long.");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length > MAX_STRING_LENGTH)
+            throw new IOException("Corrupted backup, string too long. {length: " + length + "}");
+
+        byte[] bytes = new byte[(int) length];
+        readFully(in, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while (read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if (n == -1)
+                throw new EOFException("Truncated backup.");
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.jshevek.simpleDeadlines.core;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Count days in a time zone, relatively to the day the clock was created.
+ * <p/>
+ * Today's midnight and day number are computed once, so that counting the days until a date is a division and a
+ * subtraction. A clock does not follow the time: build a new one when the date, the time or the time zone changes.
+ */
+public final class DayClock {
+    private final TimeZone _zone;
+    private final long _midnight;
+    private final int _today;
+
+    /**
+     * @param now  Current time.
+     * @param zone Time zone to count days in.
+     */
+    public DayClock(long now, TimeZone zone) {
+        Calendar today = Calendar.getInstance(zone);
+        today.setTimeInMillis(now);
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        today.set(Calendar.MINUTE, 0);
+        today.set(Calendar.SECOND, 0);
+        today.set(Calendar.MILLISECOND, 0);
+
+        _zone = zone;
+        _midnight = today.getTimeInMillis();
+        _today = dayIndex(_midnight);
+    }
+
+    /**
+     * @return Time of the start of today.
+     */
+    public long getMidnight() {
+        return _midnight;
+    }
+
+    /**
+     * @return Day number of today.
+     * @see #dayIndex(long)
+     */
+    public int getToday() {
+        return _today;
+    }
+
+    /**
+     * @return Number of the local day of a time, counted from 1970-01-01.
+     */
+    public int dayIndex(long time) {
+        long local = time + _zone.getOffset(time);
+        long days = local / Levels.DAY_IN_MILLIS;
+        // Round towards the past before 1970 too.
+        if (local < 0 && days * Levels.DAY_IN_MILLIS != local)
+            --days;
+        return (int) days;
+    }
+
+    /**
+     * @return Number of days from today to the day of a time, negative if it is in the past.
+     */
+    public int dayCount(long time) {
+        return dayIndex(time) - _today;
+    }
+}
@@ -0,0 +1,67 @@
+package com.jshevek.simpleDeadlines.core;
+
+/**
+ * A deadline, independent of the database. Meant to be reused from one row to the next.
+ */
+public final class Deadline {
+    /**
+     * ID of the deadline in the database, 0 if unknown. Only backups carry it, shared deadlines never do.
+     */
+    public long Id;
+    public String Label;
+    /**
+     * Group name, null for no group.
+     */
+    public String Group;
+    public long DueDate;
+    public boolean Done;
+
+    public Deadline() {
+    }
+
+    public Deadline(String label, String group, long dueDate, boolean done) {
+        set(label, group, dueDate, done);
+    }
+
+    /**
+     * Set every field but the ID, which is reset.
+     */
+    public Deadline set(String label, String group, long dueDate, boolean done) {
+        Id = 0;
+        Label = label;
+        Group = group;
+        DueDate = dueDate;
+        Done = done;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Deadline))
+            return false;
+
+        Deadline other = (Deadline) o;
+        return Id == other.Id
+                && DueDate == other.DueDate
+                && Done == other.Done
+                && (Label == null ? other.Label == null : Label.equals(other.Label))
+                && (Group == null ? other.Group == null : Group.equals(other.Group));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (Id ^ (Id >>> 32));
+        result = 31 * result + (Label == null ? 0 : Label.hashCode());
+        result = 31 * result + (Group == null ? 0 : Group.hashCode());
+        result = 31 * result + (int) (DueDate ^ (DueDate >>> 32));
+        result = 31 * result + (Done ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{id: " + Id + ", label: " + Label + ", group: " + Group + ", dueDate: " + DueDate + ", done: " + Done + "}";
+    }
+}
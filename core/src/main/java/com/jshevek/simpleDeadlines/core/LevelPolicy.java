@@ -0,0 +1,104 @@
+package com.jshevek.simpleDeadlines.core;
+
+/**
+ * Map a number of days left to an urgency level, from the greatest number of days of each level.
+ * <p/>
+ * Levels are resolved from a table holding the level of every day up to the last threshold, so that it takes no
+ * more than a bounds check and an array read. Instances are immutable, a new one is built when thresholds change.
+ */
+public final class LevelPolicy {
+    /**
+     * Greatest threshold accepted, keeping the lookup table small.
+     */
+    public static final int MAX_THRESHOLD = 365;
+    public static final LevelPolicy DEFAULT =
+            new LevelPolicy(Levels.TODAY, Levels.URGENT, Levels.WORRYING, Levels.NICE);
+
+    private final int _today;
+    private final int _urgent;
+    private final int _worrying;
+    private final int _nice;
+    private final int[] _levels;
+
+    /**
+     * Thresholds are numbers of days and have to be strictly increasing, from 0 to {@link #MAX_THRESHOLD}.
+     *
+     * @throws IllegalArgumentException If thresholds are out of range or out of order.
+     */
+    public LevelPolicy(int today, int urgent, int worrying, int nice) {
+        if (today < 0 || today >= urgent || urgent >= worrying || worrying >= nice || nice > MAX_THRESHOLD)
+            throw new IllegalArgumentException("Invalid level thresholds. {today: " + today + ", urgent: " + urgent
+                    + ", worrying: " + worrying + ", nice: " + nice + "}");
+
+        _today = today;
+        _urgent = urgent;
+        _worrying = worrying;
+        _nice = nice;
+
+        _levels = new int[nice + 1];
+        for (int days = 0; days < _levels.length; ++days) {
+            if (days <= today)
+                _levels[days] = Levels.TODAY;
+            else if (days <= urgent)
+                _levels[days] = Levels.URGENT;
+            else if (days <= worrying)
+                _levels[days] = Levels.WORRYING;
+            else
+                _levels[days] = Levels.NICE;
+        }
+    }
+
+    /**
+     * @param days Number of days left, negative when overdue.
+     * @return One of the {@link Levels} constants.
+     */
+    public int levelOf(int days) {
+        if (days < 0)
+            return Levels.TODAY;
+        if (days >= _levels.length)
+            return Levels.NEVERMIND;
+        return _levels[days];
+    }
+
+    /**
+     * @param level One of the {@link Levels} constants but {@link Levels#NEVERMIND}, which has no upper bound.
+     * @return The greatest number of days left of the level.
+     */
+    public int thresholdOf(int level) {
+        switch (level) {
+            case Levels.TODAY:
+                return _today;
+            case Levels.URGENT:
+                return _urgent;
+            case Levels.WORRYING:
+                return _worrying;
+            case Levels.NICE:
+                return _nice;
+            default:
+                throw new IllegalArgumentException("Level without threshold. {level: " + level + "}");
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof LevelPolicy))
+            return false;
+
+        LevelPolicy other = (LevelPolicy) o;
+        return _today == other._today && _urgent == other._urgent
+                && _worrying == other._worrying && _nice == other._nice;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((_today * 31 + _urgent) * 31 + _worrying) * 31 + _nice;
+    }
+
+    @Override
+    public String toString() {
+        return "LevelPolicy{today: " + _today + ", urgent: " + _urgent
+                + ", worrying: " + _worrying + ", nice: " + _nice + "}";
+    }
+}
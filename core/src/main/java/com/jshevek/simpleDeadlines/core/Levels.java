@@ -0,0 +1,32 @@
+package com.jshevek.simpleDeadlines.core;
+
+/**
+ * Urgency levels of deadlines. By default a level is the greatest number of days left for a deadline to belong to
+ * it, see {@link LevelPolicy} for other thresholds.
+ */
+public final class Levels {
+    public static final int TODAY = 1;
+    public static final int URGENT = 3;
+    public static final int WORRYING = 7;
+    public static final int NICE = 15;
+    /**
+     * Anything further than {@link #NICE}.
+     */
+    public static final int NEVERMIND = -1;
+    public static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Not instantiable.
+     */
+    private Levels() {
+    }
+
+    /**
+     * Level of a number of days left, with the default thresholds.
+     *
+     * @see LevelPolicy#levelOf(int)
+     */
+    public static int dayCountToLvl(int days) {
+        return LevelPolicy.DEFAULT.levelOf(days);
+    }
+}
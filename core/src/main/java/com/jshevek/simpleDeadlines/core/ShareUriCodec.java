@@ -0,0 +1,267 @@
+package com.jshevek.simpleDeadlines.core;
+
+/**
+ * Share URI format, "http://sd.casimir-lab.net/label/group/due_date/done", without going through
+ * {@code android.net.Uri}. Output is the same as {@code DeadlinesUtils.contentValuesToShareUri}: path segments are
+ * percent encoded like {@code Uri.encode(String)} does, a missing group is written as "%00".
+ * <p/>
+ * Backups append the ID of the deadline as a fifth segment, which older versions ignore.
+ * <p/>
+ * Keeps scratch buffers between calls, an instance must not be shared between threads.
+ */
+public final class ShareUriCodec {
+    public static final String BASE = "http://sd.casimir-lab.net";
+    private static final String NULL_GROUP = "%00";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final String UNRESERVED = "_-!.~'()*";
+
+    private final StringBuilder _segment = new StringBuilder();
+    private final int[] _bounds = new int[10];
+    private byte[] _bytes = new byte[64];
+
+    /**
+     * Append the share URI of a deadline, followed by its ID if it has one.
+     */
+    public StringBuilder encode(Deadline deadline, StringBuilder out) {
+        out.append(BASE).append('/');
+        encodeSegment(deadline.Label == null ? "" : deadline.Label, out);
+        out.append('/');
+        if (deadline.Group == null || deadline.Group.isEmpty())
+            out.append(NULL_GROUP);
+        else
+            encodeSegment(deadline.Group, out);
+        out.append('/').append(deadline.DueDate);
+        out.append('/').append(deadline.Done ? 1 : 0);
+        if (deadline.Id != 0)
+            out.append('/').append(deadline.Id);
+        return out;
+    }
+
+    public String encode(Deadline deadline) {
+        return encode(deadline, new StringBuilder(BASE.length() + 64)).toString();
+    }
+
+    /**
+     * Read a share URI into a deadline, its ID is 0 unless the URI has one. Extra path segments are ignored.
+     *
+     * @throws IllegalArgumentException If the URI is malformed, the deadline is then left in an unspecified state.
+     */
+    public Deadline decode(CharSequence uri, Deadline out) {
+        int count = splitPath(uri);
+        if (count < 4)
+            throw new IllegalArgumentException(String.format("Malformed Uri: %s", uri));
+
+        String label = decodeSegment(uri, 0);
+        if (label.isEmpty())
+            throw new IllegalArgumentException(String.format("Empty label: %s", uri));
+        out.Label = label;
+
+        String group = decodeSegment(uri, 1);
+        out.Group = group.charAt(0) == 0 ? null : group;
+
+        out.DueDate = parseDigits(uri, 2, "Malformed date: %s");
+        out.Done = parseDigits(uri, 3, "Malformed done state: %s") != 0;
+        out.Id = count > 4 ? parseDigits(uri, 4, "Malformed ID: %s") : 0;
+        return out;
+    }
+
+    /**
+     * Find the first path segments of a URI, skipping empty ones as {@code Uri.getPathSegments()} does.
+     *
+     * @return Number of segments found, at most 5.
+     */
+    private int splitPath(CharSequence uri) {
+        int length = uri.length();
+        int start = indexOf(uri, "://", 0);
+        if (start == -1)
+            start = 0;
+        else {
+            start = indexOf(uri, "/", start + 3);
+            if (start == -1)
+                return 0;
+        }
+
+        int end = start;
+        while (end < length && uri.charAt(end) != '?' && uri.charAt(end) != '#')
+            ++end;
+
+        int count = 0;
+        int i = start;
+        while (i < end && count < 5) {
+            while (i < end && uri.charAt(i) == '/')
+                ++i;
+            int segmentStart = i;
+            while (i < end && uri.charAt(i) != '/')
+                ++i;
+            if (i > segmentStart) {
+                _bounds[count * 2] = segmentStart;
+                _bounds[count * 2 + 1] = i;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private long parseDigits(CharSequence uri, int segment, String error) {
+        int start = _bounds[segment * 2];
+        int end = _bounds[segment * 2 + 1];
+        long value = 0;
+        // Digits are never encoded, anything else is malformed.
+        for (int i = start; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - (c - '0')) / 10)
+                throw new IllegalArgumentException(String.format(error, uri));
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private String decodeSegment(CharSequence uri, int segment) {
+        int start = _bounds[segment * 2];
+        int end = _bounds[segment * 2 + 1];
+        StringBuilder out = _segment;
+        out.setLength(0);
+
+        int i = start;
+        while (i < end) {
+            char c = uri.charAt(i);
+            if (c != '%' || !isEscape(uri, i, end)) {
+                out.append(c);
+                ++i;
+                continue;
+            }
+
+            // Gather consecutive escaped bytes, they may form a single character.
+            int byteCount = 0;
+            while (i < end && uri.charAt(i) == '%' && isEscape(uri, i, end)) {
+                if (byteCount == _bytes.length) {
+                    byte[] bytes = new byte[_bytes.length * 2];
+                    System.arraycopy(_bytes, 0, bytes, 0, byteCount);
+                    _bytes = bytes;
+                }
+                _bytes[byteCount++] = (byte) ((hexValue(uri.charAt(i + 1)) << 4) | hexValue(uri.charAt(i + 2)));
+                i += 3;
+            }
+            decodeUtf8(_bytes, byteCount, out);
+        }
+        return out.toString();
+    }
+
+    private static void encodeSegment(String value, StringBuilder out) {
+        int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            if (isUnreserved(c)) {
+                out.append(c);
+                continue;
+            }
+
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+            else if (Character.isSurrogate(c))
+                codePoint = '?';
+
+            if (codePoint < 0x80)
+                appendEscaped(codePoint, out);
+            else if (codePoint < 0x800) {
+                appendEscaped(0xC0 | (codePoint >> 6), out);
+                appendEscaped(0x80 | (codePoint & 0x3F), out);
+            } else if (codePoint < 0x10000) {
+                appendEscaped(0xE0 | (codePoint >> 12), out);
+                appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (codePoint & 0x3F), out);
+            } else {
+                appendEscaped(0xF0 | (codePoint >> 18), out);
+                appendEscaped(0x80 | ((codePoint >> 12) & 0x3F), out);
+                appendEscaped(0x80 | ((codePoint >> 6) & 0x3F), out);
+                appendEscaped(0x80 | (codePoint & 0x3F), out);
+            }
+        }
+    }
+
+    private static void appendEscaped(int b, StringBuilder out) {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9')
+                || UNRESERVED.indexOf(c) != -1;
+    }
+
+    private static boolean isEscape(CharSequence s, int i, int end) {
+        return i + 2 < end && hexValue(s.charAt(i + 1)) != -1 && hexValue(s.charAt(i + 2)) != -1;
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Decode UTF-8, malformed sequences become U+FFFD.
+     */
+    private static void decodeUtf8(byte[] bytes, int count, StringBuilder out) {
+        int i = 0;
+        while (i < count) {
+            int b = bytes[i] & 0xFF;
+            int needed;
+            int codePoint;
+            int min;
+            if (b < 0x80) {
+                out.append((char) b);
+                ++i;
+                continue;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+                codePoint = b & 0x1F;
+                min = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                needed = 2;
+                codePoint = b & 0x0F;
+                min = 0x800;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                needed = 3;
+                codePoint = b & 0x07;
+                min = 0x10000;
+            } else {
+                out.append('\uFFFD');
+                ++i;
+                continue;
+            }
+
+            int j = i + 1;
+            while (j < count && j <= i + needed && (bytes[j] & 0xC0) == 0x80) {
+                codePoint = (codePoint << 6) | (bytes[j] & 0x3F);
+                ++j;
+            }
+            if (j != i + needed + 1 || codePoint < min || codePoint > 0x10FFFF
+                    || (codePoint >= 0xD800 && codePoint <= 0xDFFF)) {
+                out.append('\uFFFD');
+                i = j;
+                continue;
+            }
+            out.appendCodePoint(codePoint);
+            i = j;
+        }
+    }
+
+    private static int indexOf(CharSequence s, String target, int from) {
+        int last = s.length() - target.length();
+        for (int i = from; i <= last; ++i) {
+            int k = 0;
+            while (k < target.length() && s.charAt(i + k) == target.charAt(k))
+                ++k;
+            if (k == target.length())
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,170 @@
+package com.jshevek.simpleDeadlines.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Deadlines;
+
+/**
+ * Measure how long list pages take to read while another thread writes batches of deadlines. With write-ahead
+ * logging, readers see the last commit instead of waiting for the writer, so reads have to stay fast whatever the
+ * writer does. Latencies are logged, the 95th percentile is checked against a bound far above what a blocked reader
+ * would take on any device.
+ */
+public class ConcurrentReadTest extends ProviderTestCase2<DeadlineProvider> {
+    private static final String TAG = ConcurrentReadTest.class.getSimpleName();
+    private static final int DEADLINE_COUNT = 2000;
+    private static final int WRITE_BATCH_SIZE = 50;
+    private static final int READ_COUNT = 200;
+    private static final String PAGE_SIZE = "100";
+    private static final long MAX_P95_MILLIS = 200;
+
+    private final List<Long> _ids = new ArrayList<>(DEADLINE_COUNT);
+    private volatile boolean _stopWriting;
+    private volatile int _writtenBatches;
+    private volatile Exception _writeError;
+
+    public ConcurrentReadTest() {
+        super(DeadlineProvider.class, DeadlinesContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        long now = System.currentTimeMillis();
+        ContentValues[] values = new ContentValues[DEADLINE_COUNT];
+        for (int i = 0; i < DEADLINE_COUNT; ++i) {
+            values[i] = new ContentValues(4);
+            values[i].put(Deadlines.LABEL, "Deadline " + i);
+            values[i].put(Deadlines.GROUP, "Group " + i % 10);
+            values[i].put(Deadlines.DUE_DATE, now + (i % 400) * DateUtils.DAY_IN_MILLIS);
+            values[i].put(Deadlines.DONE, Deadlines.STATE_NOT_DONE);
+        }
+        assertEquals(DEADLINE_COUNT, getMockContentResolver().bulkInsert(Deadlines.CONTENT_URI, values));
+
+        Cursor c = getMockContentResolver().query(Deadlines.CONTENT_URI, new String[]{Deadlines.ID},
+                null, null, null);
+        try {
+            while (c.moveToNext())
+                _ids.add(c.getLong(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testWriteAheadLogging() {
+        // The journal mode is stored in the file, a plain connection sees the one set by the provider.
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(getMockContext().getDatabasePath(DBHelper.DB_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        Cursor c = db.rawQuery("PRAGMA journal_mode;", null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("wal", c.getString(0).toLowerCase());
+        } finally {
+            c.close();
+            db.close();
+        }
+    }
+
+    public void testReadLatencyWhileWriting() throws Exception {
+        long[] idle = measureReads();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, TAG + ".writer");
+        writer.start();
+        long[] busy;
+        int batchesBefore;
+        try {
+            // Only measure once the writer is busy.
+            while (_writtenBatches == 0 && _writeError == null)
+                SystemClock.sleep(1);
+            batchesBefore = _writtenBatches;
+            busy = measureReads();
+        } finally {
+            _stopWriting = true;
+            writer.join();
+        }
+
+        if (_writeError != null)
+            throw _writeError;
+        int batchesDuring = _writtenBatches - batchesBefore;
+        Log.i(TAG, "Page reads, idle: " + describe(idle) + ", while writing: " + describe(busy)
+                + ", batches written meanwhile: " + batchesDuring);
+
+        assertTrue("Writer stalled while reading. {batches: " + batchesDuring + "}", batchesDuring > 0);
+        long p95 = percentile(busy, 95) / 1000000;
+        assertTrue("Reads blocked by the writer. {p95: " + p95 + "ms}", p95 < MAX_P95_MILLIS);
+    }
+
+    /**
+     * @return Time taken by each read of the first page, in nanoseconds, sorted.
+     */
+    private long[] measureReads() {
+        Uri uri = Deadlines.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Deadlines.PARAM_LIMIT, PAGE_SIZE)
+                .build();
+        long[] times = new long[READ_COUNT];
+        for (int i = 0; i < READ_COUNT; ++i) {
+            long start = System.nanoTime();
+            Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+            try {
+                // Fill the window, as the loaders do.
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Flip the done state of batches of deadlines until told to stop, each batch in one transaction.
+     */
+    private void writeBatches() {
+        try {
+            int state = Deadlines.STATE_DONE;
+            for (int start = 0; !_stopWriting; start = (start + WRITE_BATCH_SIZE) % _ids.size()) {
+                ArrayList<ContentProviderOperation> operations = new ArrayList<>(WRITE_BATCH_SIZE);
+                for (int i = start; i < start + WRITE_BATCH_SIZE && i < _ids.size(); ++i) {
+                    operations.add(ContentProviderOperation
+                            .newUpdate(Uri.withAppendedPath(Deadlines.CONTENT_URI, String.valueOf(_ids.get(i))))
+                            .withValue(Deadlines.DONE, state)
+                            .build());
+                }
+                getMockContentResolver().applyBatch(DeadlinesContract.AUTHORITY, operations);
+                ++_writtenBatches;
+                if (start + WRITE_BATCH_SIZE >= _ids.size())
+                    state = state == Deadlines.STATE_DONE ? Deadlines.STATE_NOT_DONE : Deadlines.STATE_DONE;
+            }
+        } catch (Exception ex) {
+            _writeError = ex;
+        }
+    }
+
+    private static String describe(long[] times) {
+        return "{median: " + percentile(times, 50) / 1000 + "us, p95: " + percentile(times, 95) / 1000
+                + "us, max: " + times[times.length - 1] / 1000 + "us}";
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
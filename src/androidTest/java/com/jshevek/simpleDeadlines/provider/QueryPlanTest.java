@@ -0,0 +1,157 @@
+package com.jshevek.simpleDeadlines.provider;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Deadlines;
+
+/**
+ * Check that lists and counts are read from the indexes, in their order: no full scan, no sort. Lists are queried
+ * sorted on due dates, as whole lists are, or a page at a time, which sets its own order. The few steps allowed to
+ * scan or sort are named by each test, along with the reason.
+ */
+public class QueryPlanTest extends ProviderTestCase2<DeadlineProvider> {
+    private static final String GROUP = "Work";
+    private static final String PAGE_SIZE = "20";
+    private static final String PAGE_KEY = "1400000000000,42";
+    private static final String SEARCH = "work*";
+    private static final String SINCE = "100";
+
+    public QueryPlanTest() {
+        super(DeadlineProvider.class, DeadlinesContract.AUTHORITY);
+    }
+
+    public void testInProgress() {
+        assertIndexed(Deadlines.CONTENT_URI);
+        assertPagesIndexed(Deadlines.CONTENT_URI);
+    }
+
+    public void testInProgressGroup() {
+        Uri uri = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_GROUP)
+                .appendPath(GROUP)
+                .build();
+        assertIndexed(uri);
+        assertPagesIndexed(uri);
+    }
+
+    public void testArchived() {
+        Uri uri = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_ARCHIVED)
+                .build();
+        assertIndexed(uri);
+        assertPagesIndexed(uri);
+    }
+
+    public void testArchivedGroup() {
+        Uri uri = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_ARCHIVED)
+                .appendPath(Deadlines.FILTER_GROUP)
+                .appendPath(GROUP)
+                .build();
+        assertIndexed(uri);
+        assertPagesIndexed(uri);
+    }
+
+    public void testCount() {
+        assertIndexed(DeadlinesContract.Count.CONTENT_URI);
+    }
+
+    public void testGroups() {
+        // Every group is listed, read from the name index so it needs no sort. The deadlines of each group are only
+        // looked up through the group index.
+        Uri inProgress = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(DeadlinesContract.GROUPS_PATH)
+                .build();
+        Uri archived = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_ARCHIVED)
+                .appendPath(DeadlinesContract.GROUPS_PATH)
+                .build();
+        String groupsScan = DeadlinesContract.GROUPS_PATH + " USING";
+        assertIndexed(inProgress, null, groupsScan, null);
+        assertIndexed(archived, null, groupsScan, null);
+        assertIndexed(DeadlinesContract.Groups.CONTENT_URI, null, groupsScan, null);
+    }
+
+    public void testSearch() {
+        // The full-text index is a virtual table, SQLite reports its lookup of the matches as a scan. Results are
+        // sorted on a rank computed from the matches, which no index holds, but only the matches are sorted.
+        Uri.Builder inProgress = Deadlines.CONTENT_URI.buildUpon();
+        Uri.Builder archived = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_ARCHIVED);
+        for (Uri.Builder builder : new Uri.Builder[]{inProgress, archived}) {
+            Uri uri = builder.build();
+            Uri all = uri.buildUpon()
+                    .appendPath(Deadlines.FILTER_SEARCH)
+                    .appendPath(SEARCH)
+                    .appendQueryParameter(Deadlines.PARAM_LIMIT, PAGE_SIZE)
+                    .build();
+            Uri group = uri.buildUpon()
+                    .appendPath(Deadlines.FILTER_GROUP)
+                    .appendPath(GROUP)
+                    .appendPath(Deadlines.FILTER_SEARCH)
+                    .appendPath(SEARCH)
+                    .appendQueryParameter(Deadlines.PARAM_LIMIT, PAGE_SIZE)
+                    .build();
+            assertIndexed(all, null, "VIRTUAL TABLE INDEX", "ORDER BY");
+            assertIndexed(group, null, "VIRTUAL TABLE INDEX", "ORDER BY");
+        }
+    }
+
+    public void testIds() {
+        Uri uri = Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(Deadlines.FILTER_IDS)
+                .appendQueryParameter(Deadlines.PARAM_IDS, "1,42,1337")
+                .build();
+        assertIndexed(uri, null, null, null);
+    }
+
+    public void testChanges() {
+        // The last change of each deadline is found by grouping the changes after the sequence number, which are
+        // only those since the last backup. Backups sort them on due dates as well.
+        Uri uri = DeadlinesContract.Changes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(DeadlinesContract.Changes.PARAM_SINCE, SINCE)
+                .build();
+        assertIndexed(uri, null, null, "GROUP BY");
+        assertIndexed(uri, Deadlines.DUE_DATE, null, "TEMP B-TREE");
+    }
+
+    /**
+     * Check the first and a following page, in both directions.
+     */
+    private void assertPagesIndexed(Uri uri) {
+        for (boolean descending : new boolean[]{false, true}) {
+            Uri.Builder builder = uri.buildUpon()
+                    .appendQueryParameter(Deadlines.PARAM_LIMIT, PAGE_SIZE)
+                    .appendQueryParameter(Deadlines.PARAM_DESCENDING, String.valueOf(descending));
+            assertIndexed(builder.build());
+            assertIndexed(builder.appendQueryParameter(Deadlines.PARAM_AFTER, PAGE_KEY).build());
+        }
+    }
+
+    private void assertIndexed(Uri uri) {
+        assertIndexed(uri, Deadlines.DUE_DATE, null, null);
+    }
+
+    /**
+     * @param allowedScan Text of the scan steps allowed, null to allow none.
+     * @param allowedSort Text of the sort steps allowed, null to allow none.
+     */
+    private void assertIndexed(Uri uri, String sortOrder, String allowedScan, String allowedSort) {
+        Cursor plan = getProvider().explainQueryPlan(uri, sortOrder);
+        try {
+            int detailIdx = plan.getColumnIndexOrThrow("detail");
+            assertTrue("Empty plan. {uri: " + uri + "}", plan.getCount() > 0);
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIdx);
+                assertFalse("Full scan. {uri: " + uri + ", step: " + detail + "}",
+                        detail.contains("SCAN") && !(allowedScan != null && detail.contains(allowedScan)));
+                assertFalse("Sort. {uri: " + uri + ", step: " + detail + "}",
+                        detail.contains("TEMP B-TREE") && !(allowedSort != null && detail.contains(allowedSort)));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+}
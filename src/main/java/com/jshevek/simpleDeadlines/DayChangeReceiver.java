@@ -0,0 +1,22 @@
+package com.jshevek.simpleDeadlines;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import com.jshevek.simpleDeadlines.data.DateLabelCache;
+import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
+
+/**
+ * Reset the day clock when the current day may have changed: at midnight, or when the user sets the time or the
+ * time zone. Date labels are formatted again when the time zone or the locale changes.
+ */
+public class DayChangeReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (Intent.ACTION_TIMEZONE_CHANGED.equals(action) || Intent.ACTION_LOCALE_CHANGED.equals(action))
+            DateLabelCache.reset();
+
+        DeadlinesUtils.resetDayClock(context);
+    }
+}
@@ -1,21 +1,18 @@
 package com.jshevek.simpleDeadlines.dashclock;
 
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.text.format.DateUtils;
 
 import com.jshevek.simpleDeadlines.R;
+import com.jshevek.simpleDeadlines.data.DeadlineRow;
 import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
 import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
 import com.jshevek.simpleDeadlines.ui.MainActivity;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 
-import java.util.Calendar;
-
 public class DeadlinesExtension extends DashClockExtension {
     private static final int NB_LINES = 5;
     private ContentResolver _cr;
@@ -36,9 +33,9 @@ public class DeadlinesExtension extends DashClockExtension {
 
     @Override
     protected void onUpdateData(int reason) {
-        Calendar today = Calendar.getInstance();
-        today.set(Calendar.HOUR, 0);
-        long diff = today.getTimeInMillis() + DeadlinesUtils.LVL_TODAY * DateUtils.DAY_IN_MILLIS;
+        long midnight = DeadlinesUtils.getDayClock().getMidnight();
+        int todayDays = DeadlinesUtils.getLevelPolicy(this).thresholdOf(DeadlinesUtils.LVL_TODAY);
+        long diff = midnight + todayDays * DateUtils.DAY_IN_MILLIS;
         String selection = DeadlinesContract.Deadlines.DUE_DATE + " <= ?"
                 + " AND " + DeadlinesContract.Deadlines.DONE + " = 0";
         String[] selectionArgs = {String.valueOf(diff)};
@@ -62,10 +59,9 @@ public class DeadlinesExtension extends DashClockExtension {
         if (!cursor.moveToFirst())
             return "";
 
+        DeadlineRow row = new DeadlineRow(cursor);
         for (int i = 0; i < cursor.getCount() && i < NB_LINES; ++i) {
-            ContentValues values = new ContentValues();
-            DatabaseUtils.cursorRowToContentValues(cursor, values);
-            builder.append(values.getAsString(DeadlinesContract.Deadlines.LABEL) + "\n");
+            builder.append(row.label()).append('\n');
             cursor.moveToNext();
         }
 
@@ -0,0 +1,73 @@
+package com.jshevek.simpleDeadlines.data;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Short due date labels of the deadline lists, formatted once per day.
+ * <p/>
+ * Labels are kept by day number, most recently shown first, so scrolling back and forth over a list only formats
+ * each day once. The cache follows the locale and the time zone it was created in, {@link #reset()} has to be called
+ * when either changes. Only meant to be used from the main thread.
+ */
+public class DateLabelCache {
+    private static final String TAG = DateLabelCache.class.getSimpleName();
+    /**
+     * Number of days kept, a few screens of rows in the densest lists.
+     */
+    private static final int CACHE_SIZE = 256;
+    private static DateLabelCache _instance;
+
+    private final DateFormat _format = DateFormat.getDateInstance(DateFormat.SHORT);
+    private final Date _date = new Date();
+    private final LruCache<Integer, String> _labels = new LruCache<>(CACHE_SIZE);
+
+    /**
+     * Cache for the current locale and time zone, created on first use.
+     */
+    public static DateLabelCache getInstance() {
+        if (_instance == null)
+            _instance = new DateLabelCache();
+        return _instance;
+    }
+
+    /**
+     * Drop the cache, labels will be formatted again with the current locale and time zone.
+     */
+    public static void reset() {
+        if (_instance != null)
+            Log.d(TAG, "Dropping date labels. " + _instance._labels);
+        _instance = null;
+    }
+
+    /**
+     * @return Label of the day of a time.
+     */
+    public String format(long time) {
+        int day = DeadlinesUtils.getDayClock().dayIndex(time);
+        String label = _labels.get(day);
+        if (label == null) {
+            _date.setTime(time);
+            label = _format.format(_date);
+            _labels.put(day, label);
+        }
+        return label;
+    }
+
+    /**
+     * @return Number of labels found in the cache.
+     */
+    public int hitCount() {
+        return _labels.hitCount();
+    }
+
+    /**
+     * @return Number of labels formatted.
+     */
+    public int missCount() {
+        return _labels.missCount();
+    }
+}
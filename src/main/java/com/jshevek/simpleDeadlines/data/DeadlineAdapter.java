@@ -1,77 +1,156 @@
 package com.jshevek.simpleDeadlines.data;
 
-import android.content.ContentResolver;
-import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.graphics.Paint;
-import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.CursorAdapter;
 import android.widget.TextView;
 import com.jshevek.simpleDeadlines.ui.DayCounterView;
 import com.jshevek.simpleDeadlines.R;
-import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
-
-import java.text.DateFormat;
-import java.util.Date;
+import com.jshevek.simpleDeadlines.core.DayClock;
+import com.jshevek.simpleDeadlines.core.LevelPolicy;
 
+/**
+ * Rows of a deadline list.
+ * <p/>
+ * A new cursor only rebinds the rows that changed: a view still showing the same deadline, with the same content,
+ * day and settings, is left as it is, so that reloading a list does not lay out every visible row again.
+ */
 public class DeadlineAdapter extends CursorAdapter {
+    private static final String TAG = DeadlineAdapter.class.getSimpleName();
+    private final DeadlineRow _row = new DeadlineRow();
+    private final DoneWriter _doneWriter;
     private boolean _archived;
+    private int _reboundCount;
+    private int _keptCount;
 
     public DeadlineAdapter(Context context, Cursor c, boolean archived) {
         super(context, c, false);
 
+        _doneWriter = new DoneWriter(context, this);
         _archived = archived;
     }
 
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        if (_reboundCount + _keptCount > 0)
+            Log.d(TAG, "Last change rebound " + _reboundCount + " rows, kept " + _keptCount + ".");
+        _reboundCount = 0;
+        _keptCount = 0;
+
+        _doneWriter.onCursorChanged();
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * @return Number of rows fully bound since the last cursor change, to another deadline or to a changed one.
+     */
+    public int reboundCount() {
+        return _reboundCount;
+    }
+
+    /**
+     * @return Number of rows left as they were since the last cursor change, their deadline being unchanged.
+     */
+    public int keptCount() {
+        return _keptCount;
+    }
+
+    /**
+     * Find the position of a deadline, looking outward from where it is expected.
+     *
+     * @param hint  Expected position.
+     * @param range Greatest distance from the expected position to look at.
+     * @return The position found, -1 if none.
+     */
+    public int findPosition(long id, int hint, int range) {
+        Cursor c = getCursor();
+        if (c == null)
+            return -1;
+
+        DeadlineRow row = _row.setCursor(c);
+        int count = c.getCount();
+        for (int d = 0; d <= range; ++d) {
+            int before = hint - d;
+            if (before >= 0 && before < count && c.moveToPosition(before) && row.id() == id)
+                return before;
+            int after = hint + d;
+            if (d > 0 && after < count && after >= 0 && c.moveToPosition(after) && row.id() == id)
+                return after;
+        }
+        return -1;
+    }
+
+    /**
+     * Write the done states still queued, without waiting for the taps to settle.
+     */
+    public void flushDone() {
+        _doneWriter.flush();
+    }
+
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         Holder holder = (Holder) view.getTag();
-        ContentValues values = new ContentValues();
-        DatabaseUtils.cursorRowToContentValues(cursor, values);
+        DeadlineRow row = _row.setCursor(cursor);
+
+        long id = row.id();
+        String label = row.label();
+        String group = row.group();
+        long time = row.dueDate();
+        boolean stored = row.isDone();
+        boolean done = _doneWriter.isDone(id, stored);
+        DayClock clock = DeadlinesUtils.getDayClock();
+        LevelPolicy policy = DeadlinesUtils.getLevelPolicy(context);
+        DateLabelCache labels = DateLabelCache.getInstance();
+
+        holder.StoredDone = stored;
+        // Clock, policy and labels are replaced whenever they change, comparing instances is enough.
+        if (holder.Id == id && done == holder.BoundDone && time == holder.BoundDueDate
+                && TextUtils.equals(label, holder.BoundLabel)
+                && TextUtils.equals(group, holder.BoundGroup)
+                && clock == holder.BoundClock && policy == holder.BoundPolicy
+                && labels == holder.BoundLabels) {
+            ++_keptCount;
+            return;
+        }
+        ++_reboundCount;
 
-        long time = values.getAsLong(DeadlinesContract.Deadlines.DUE_DATE);
         holder.DayCounter.setAutomaticBackground(!_archived);
         holder.DayCounter.setDate(time);
 
-        holder.Label.setText(values.getAsString(DeadlinesContract.Deadlines.LABEL));
-        setStrikeText(holder.Label, values.getAsInteger(DeadlinesContract.Deadlines.DONE));
+        holder.Label.setText(label);
+        setStrikeText(holder.Label, done);
 
-        holder.Group.setText(values.getAsString(DeadlinesContract.Deadlines.GROUP));
+        holder.Group.setText(group);
 
-        DateFormat df = DateFormat.getDateInstance(DateFormat.SHORT);
-        holder.DueDate.setText(df.format(new Date(time)));
+        holder.DueDate.setText(labels.format(time));
 
+        holder.Id = id;
         holder.Done.setOnCheckedChangeListener(null);
-        holder.Done.setChecked(
-                values.getAsInteger(DeadlinesContract.Deadlines.DONE)
-                        == DeadlinesContract.Deadlines.STATE_DONE);
-        final ContentResolver cr = context.getContentResolver();
-        final int id = values.getAsInteger(DeadlinesContract.Deadlines.ID);
-        holder.Done.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                Uri uri = ContentUris.withAppendedId(DeadlinesContract.Deadlines.CONTENT_URI, id);
-                ContentValues values = new ContentValues();
-                int state = isChecked
-                        ? DeadlinesContract.Deadlines.STATE_DONE
-                        : DeadlinesContract.Deadlines.STATE_NOT_DONE;
-                values.put(DeadlinesContract.Deadlines.DONE, state);
-                cr.update(uri, values, null, null);
-            }
-        });
+        holder.Done.setChecked(done);
+        holder.Done.setOnCheckedChangeListener(holder);
+
+        holder.BoundLabel = label;
+        holder.BoundGroup = group;
+        holder.BoundDueDate = time;
+        holder.BoundDone = done;
+        holder.BoundClock = clock;
+        holder.BoundPolicy = policy;
+        holder.BoundLabels = labels;
     }
 
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         View v = LayoutInflater.from(context).inflate(R.layout.deadline_entry, parent, false);
-        Holder holder = new Holder();
+        Holder holder = new Holder(_doneWriter);
         holder.DayCounter = (DayCounterView) v.findViewById(R.id.day_counter);
         holder.Label = (TextView) v.findViewById(R.id.label);
         holder.Group = (TextView) v.findViewById(R.id.group);
@@ -81,18 +160,41 @@ public class DeadlineAdapter extends CursorAdapter {
         return v;
     }
 
-    private static void setStrikeText(TextView text, int state) {
-        if (state == DeadlinesContract.Deadlines.STATE_DONE)
+    private static void setStrikeText(TextView text, boolean done) {
+        if (done)
             text.setPaintFlags(text.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
         else
             text.setPaintFlags(text.getPaintFlags() & ~Paint.STRIKE_THRU_TEXT_FLAG);
     }
 
-    private static class Holder {
+    /**
+     * Views of a row and what they show, also listening to its done box so that binding does not create a listener.
+     */
+    private static class Holder implements CompoundButton.OnCheckedChangeListener {
+        private final DoneWriter _doneWriter;
+        public long Id = AdapterView.INVALID_ROW_ID;
+        public boolean StoredDone;
+        public String BoundLabel;
+        public String BoundGroup;
+        public long BoundDueDate;
+        public boolean BoundDone;
+        public DayClock BoundClock;
+        public LevelPolicy BoundPolicy;
+        public DateLabelCache BoundLabels;
         public DayCounterView DayCounter;
         public TextView Label;
         public TextView Group;
         public TextView DueDate;
         public CheckBox Done;
+
+        public Holder(DoneWriter doneWriter) {
+            _doneWriter = doneWriter;
+        }
+
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            setStrikeText(Label, isChecked);
+            BoundDone = isChecked;
+            _doneWriter.setDone(Id, isChecked, StoredDone);
+        }
     }
 }
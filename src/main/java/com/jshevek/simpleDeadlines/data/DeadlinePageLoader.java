@@ -0,0 +1,472 @@
+package com.jshevek.simpleDeadlines.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load a list of deadlines a page at a time.
+ * <p/>
+ * Each page is a separate query resuming after the due date and ID of the last row of the previous one, so the
+ * provider never skips rows with an offset and only the pages scrolled to are read. Loading a page only queries that
+ * page: the pages already loaded are kept, and at most {@link #WINDOW_PAGES} of them, the farthest ones being dropped
+ * and read again if scrolled back to. Each step costs the same however far the list is scrolled.
+ * <p/>
+ * When the deadlines change, the list is read again around the deadline given to {@link #setAnchor(long, long)},
+ * one page before it and one page from it, instead of every page scrolled through. Pages before that origin are then
+ * loaded with {@link #loadPreviousPage()}.
+ */
+public class DeadlinePageLoader extends AsyncTaskLoader<Cursor> {
+    /**
+     * Greatest number of pages kept loaded.
+     */
+    private static final int WINDOW_PAGES = 5;
+
+    private final ForceLoadContentObserver _observer;
+    private final Uri _uri;
+    private final int _pageSize;
+    private final boolean _descending;
+    /**
+     * Requests, counted on the main thread. A load serves those not served yet by the window it starts from.
+     */
+    private volatile int _reloadCount;
+    private volatile int _nextCount;
+    private volatile int _previousCount;
+    private boolean _hasAnchor;
+    private long _anchorDueDate;
+    private long _anchorId;
+    /**
+     * First deadline read, the list starts from the top when there is none.
+     */
+    private volatile boolean _hasOrigin;
+    private volatile long _originDueDate;
+    private volatile long _originId;
+    /**
+     * Window last delivered, the pages it holds are owned by the loader.
+     */
+    private volatile PageWindow _window;
+    /**
+     * Page {@link #_observer} is registered on.
+     */
+    private Cursor _observed;
+
+    /**
+     * @param uri        List of deadlines to load.
+     * @param pageSize   Number of deadlines per page.
+     * @param descending True to load the latest due dates first.
+     */
+    public DeadlinePageLoader(Context context, Uri uri, int pageSize, boolean descending) {
+        super(context);
+        _observer = new ForceLoadContentObserver();
+        _uri = uri;
+        _pageSize = pageSize;
+        _descending = descending;
+    }
+
+    /**
+     * Set the deadline the list is read again from when the deadlines change, usually the first one shown.
+     */
+    public void setAnchor(long dueDate, long id) {
+        _hasAnchor = true;
+        _anchorDueDate = dueDate;
+        _anchorId = id;
+    }
+
+    /**
+     * Load one more page, unless all deadlines are loaded or a page is already on its way.
+     */
+    public void loadNextPage() {
+        PageWindow window = _window;
+        if (window == null || window.TailComplete || window.NextCount != _nextCount)
+            return;
+
+        ++_nextCount;
+        forceLoad();
+    }
+
+    /**
+     * Load one more page before the first deadline loaded, unless there is none left or a page is already on its
+     * way.
+     */
+    public void loadPreviousPage() {
+        PageWindow window = _window;
+        if (window == null || window.HeadComplete || window.PreviousCount != _previousCount)
+            return;
+
+        ++_previousCount;
+        forceLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        if (_hasAnchor) {
+            _hasOrigin = true;
+            _originDueDate = _anchorDueDate;
+            _originId = _anchorId;
+        }
+        ++_reloadCount;
+        super.onContentChanged();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PageWindow base = _window;
+        int reloadCount = _reloadCount;
+        int nextCount = _nextCount;
+        int previousCount = _previousCount;
+
+        PageWindow window;
+        if (base == null || base.ReloadCount != reloadCount)
+            window = loadAroundOrigin();
+        else {
+            window = new PageWindow(base);
+            // Pages are only appended or prepended, the window is trimmed on the other side.
+            // A page that failed to load is asked for again on the next scroll.
+            if (base.NextCount != nextCount && !base.TailComplete) {
+                Page last = window.Pages.get(window.Pages.size() - 1);
+                Page page = queryPage(last.LastDueDate + "," + last.LastId, _descending, false);
+                if (page != null) {
+                    window.TailComplete = page.Count < _pageSize;
+                    if (page.Count > 0)
+                        window.Pages.add(page);
+                    else
+                        page.Cursor.close();
+                    while (window.Pages.size() > WINDOW_PAGES) {
+                        window.Pages.remove(0);
+                        window.HeadComplete = false;
+                    }
+                }
+            }
+            if (base.PreviousCount != previousCount && !base.HeadComplete) {
+                Page first = window.Pages.get(0);
+                Page page = queryPage(first.FirstDueDate + "," + first.FirstId, !_descending, true);
+                if (page != null) {
+                    window.HeadComplete = page.Count < _pageSize;
+                    if (page.Count > 0)
+                        window.Pages.add(0, page);
+                    else
+                        page.Cursor.close();
+                    while (window.Pages.size() > WINDOW_PAGES) {
+                        window.Pages.remove(window.Pages.size() - 1);
+                        window.TailComplete = false;
+                    }
+                }
+            }
+        }
+        if (window == null)
+            return null;
+
+        window.ReloadCount = reloadCount;
+        window.NextCount = nextCount;
+        window.PreviousCount = previousCount;
+        return new WindowCursor(window);
+    }
+
+    /**
+     * Read the page before the origin and the page starting from it, or the first page without an origin.
+     */
+    private PageWindow loadAroundOrigin() {
+        PageWindow window = new PageWindow();
+        String after = null;
+
+        if (_hasOrigin) {
+            long dueDate = _originDueDate;
+            long id = _originId;
+
+            // Deadlines before the origin are read backwards from it, then put back in order.
+            Page head = queryPage(dueDate + "," + id, !_descending, true);
+            if (head == null)
+                return null;
+            window.HeadComplete = head.Count < _pageSize;
+            if (head.Count > 0)
+                window.Pages.add(head);
+            else
+                head.Cursor.close();
+
+            // Page keys exclude their own row, the one right before the origin includes it.
+            after = dueDate + "," + (_descending ? id + 1 : id - 1);
+        }
+
+        Page page = queryPage(after, _descending, false);
+        if (page == null) {
+            closeAll(window.Pages, null);
+            return null;
+        }
+        window.Pages.add(page);
+        window.TailComplete = page.Count < _pageSize;
+        return window;
+    }
+
+    /**
+     * Query a page and read its bounds, before it is shared with the main thread.
+     *
+     * @param reversed True to read the page backwards, its rows are then put back in order.
+     * @return The page, null if the query failed.
+     */
+    private Page queryPage(String after, boolean descending, boolean reversed) {
+        Cursor c = getContext().getContentResolver().query(pageUri(after, descending, _pageSize),
+                null, null, null, null);
+        if (c == null)
+            return null;
+        if (reversed)
+            c = new ReversedCursor(c);
+
+        // Fill the window now, while still off the main thread.
+        Page page = new Page(c, c.getCount());
+        if (page.Count > 0) {
+            int dueDateIdx = c.getColumnIndex(DeadlinesContract.Deadlines.DUE_DATE);
+            int idIdx = c.getColumnIndex(DeadlinesContract.Deadlines.ID);
+            c.moveToFirst();
+            page.FirstDueDate = c.getLong(dueDateIdx);
+            page.FirstId = c.getLong(idIdx);
+            c.moveToLast();
+            page.LastDueDate = c.getLong(dueDateIdx);
+            page.LastId = c.getLong(idIdx);
+            c.moveToPosition(-1);
+        }
+        return page;
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PageWindow window = cursor == null ? null : ((WindowCursor) cursor).getPageWindow();
+        if (isReset()) {
+            if (window != null)
+                closeAll(window.Pages, _window);
+            return;
+        }
+
+        PageWindow oldWindow = _window;
+        _window = window;
+        observe(window);
+
+        if (isStarted())
+            super.deliverResult(cursor);
+
+        if (oldWindow != null)
+            closeAll(oldWindow.Pages, window);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        PageWindow window = _window;
+        if (window != null)
+            super.deliverResult(new WindowCursor(window));
+        if (takeContentChanged() || window == null)
+            forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null)
+            closeAll(((WindowCursor) cursor).getPageWindow().Pages, _window);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        PageWindow window = _window;
+        _window = null;
+        _observed = null;
+        if (window != null)
+            closeAll(window.Pages, null);
+    }
+
+    /**
+     * Watch the first page of a window. All pages share the same notification URI, one is enough.
+     */
+    private void observe(PageWindow window) {
+        Cursor page = window == null || window.Pages.isEmpty() ? null : window.Pages.get(0).Cursor;
+        if (page == _observed)
+            return;
+
+        if (_observed != null && !_observed.isClosed())
+            _observed.unregisterContentObserver(_observer);
+        _observed = page;
+        if (page != null)
+            page.registerContentObserver(_observer);
+    }
+
+    /**
+     * Close the pages of a window, except those still held by another one.
+     *
+     * @param kept PageWindow whose pages stay open, may be null.
+     */
+    private static void closeAll(List<Page> pages, PageWindow kept) {
+        for (Page page : pages) {
+            if (kept == null || !kept.Pages.contains(page))
+                page.Cursor.close();
+        }
+    }
+
+    private Uri pageUri(String after, boolean descending, int limit) {
+        Uri.Builder builder = _uri.buildUpon();
+        builder.appendQueryParameter(DeadlinesContract.Deadlines.PARAM_LIMIT, String.valueOf(limit));
+        if (descending)
+            builder.appendQueryParameter(DeadlinesContract.Deadlines.PARAM_DESCENDING, String.valueOf(true));
+        if (after != null)
+            builder.appendQueryParameter(DeadlinesContract.Deadlines.PARAM_AFTER, after);
+        return builder.build();
+    }
+
+    /**
+     * A page of deadlines, with the keys of its first and last rows, in list order.
+     */
+    private static class Page {
+        public final Cursor Cursor;
+        public final int Count;
+        public long FirstDueDate;
+        public long FirstId;
+        public long LastDueDate;
+        public long LastId;
+
+        public Page(Cursor cursor, int count) {
+            Cursor = cursor;
+            Count = count;
+        }
+    }
+
+    /**
+     * Pages loaded, in list order, and the requests they answer.
+     */
+    private static class PageWindow {
+        public final List<Page> Pages;
+        public boolean HeadComplete = true;
+        public boolean TailComplete;
+        public int ReloadCount;
+        public int NextCount;
+        public int PreviousCount;
+
+        public PageWindow() {
+            Pages = new ArrayList<>(WINDOW_PAGES + 1);
+        }
+
+        public PageWindow(PageWindow window) {
+            Pages = new ArrayList<>(window.Pages);
+            HeadComplete = window.HeadComplete;
+            TailComplete = window.TailComplete;
+        }
+    }
+
+    /**
+     * Cursor over the pages of a window. Pages are shared with the next windows and closed by the loader once
+     * dropped, closing this cursor leaves them open.
+     */
+    private static class WindowCursor extends MergeCursor {
+        private final PageWindow _window;
+
+        public WindowCursor(PageWindow window) {
+            super(toCursors(window.Pages));
+            _window = window;
+        }
+
+        public PageWindow getPageWindow() {
+            return _window;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private static Cursor[] toCursors(List<Page> pages) {
+            Cursor[] cursors = new Cursor[pages.size()];
+            for (int i = 0; i < cursors.length; ++i)
+                cursors[i] = pages.get(i).Cursor;
+            return cursors;
+        }
+    }
+
+    /**
+     * Cursor reading the rows of another one from the last to the first.
+     */
+    private static class ReversedCursor extends CursorWrapper {
+        private int _position = -1;
+
+        public ReversedCursor(Cursor cursor) {
+            super(cursor);
+        }
+
+        @Override
+        public int getPosition() {
+            return _position;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            int count = getCount();
+            if (position < 0) {
+                _position = -1;
+                super.moveToPosition(count);
+                return false;
+            }
+            if (position >= count) {
+                _position = count;
+                super.moveToPosition(-1);
+                return false;
+            }
+
+            _position = position;
+            return super.moveToPosition(count - 1 - position);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(_position + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(getCount() - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(_position + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(_position - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return _position == 0 && getCount() > 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return _position == getCount() - 1 && getCount() > 0;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return getCount() == 0 || _position == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return getCount() == 0 || _position == getCount();
+        }
+    }
+}
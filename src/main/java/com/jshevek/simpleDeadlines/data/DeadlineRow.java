@@ -0,0 +1,82 @@
+package com.jshevek.simpleDeadlines.data;
+
+import android.database.Cursor;
+import com.jshevek.simpleDeadlines.core.Deadline;
+import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
+
+/**
+ * Typed view of the current row of a deadlines cursor, reading columns in place instead of copying the row.
+ * <p/>
+ * Column indexes are looked up once per cursor, so one instance can be kept and pointed at each row to read. Any
+ * cursor holding the deadline columns works, the ID column is only needed by {@link #id()}.
+ */
+public class DeadlineRow {
+    private Cursor _cursor;
+    private int _idIdx;
+    private int _labelIdx;
+    private int _groupIdx;
+    private int _dueDateIdx;
+    private int _doneIdx;
+
+    public DeadlineRow() {
+    }
+
+    public DeadlineRow(Cursor cursor) {
+        setCursor(cursor);
+    }
+
+    /**
+     * Read from a cursor, from its current row. Column indexes are kept when it is the cursor already read from.
+     *
+     * @return This row, for chaining.
+     */
+    public DeadlineRow setCursor(Cursor cursor) {
+        if (cursor == _cursor)
+            return this;
+
+        _cursor = cursor;
+        if (cursor != null) {
+            _idIdx = cursor.getColumnIndex(DeadlinesContract.Deadlines.ID);
+            _labelIdx = cursor.getColumnIndexOrThrow(DeadlinesContract.Deadlines.LABEL);
+            _groupIdx = cursor.getColumnIndexOrThrow(DeadlinesContract.Deadlines.GROUP);
+            _dueDateIdx = cursor.getColumnIndexOrThrow(DeadlinesContract.Deadlines.DUE_DATE);
+            _doneIdx = cursor.getColumnIndexOrThrow(DeadlinesContract.Deadlines.DONE);
+        }
+        return this;
+    }
+
+    public Cursor getCursor() {
+        return _cursor;
+    }
+
+    public long id() {
+        if (_idIdx == -1)
+            throw new IllegalStateException("No ID column in cursor.");
+        return _cursor.getLong(_idIdx);
+    }
+
+    public String label() {
+        return _cursor.getString(_labelIdx);
+    }
+
+    public String group() {
+        return _cursor.getString(_groupIdx);
+    }
+
+    public long dueDate() {
+        return _cursor.getLong(_dueDateIdx);
+    }
+
+    public boolean isDone() {
+        return _cursor.getInt(_doneIdx) == DeadlinesContract.Deadlines.STATE_DONE;
+    }
+
+    /**
+     * Copy the row into a deadline.
+     *
+     * @return The deadline given.
+     */
+    public Deadline toDeadline(Deadline out) {
+        return out.set(label(), group(), dueDate(), isDone());
+    }
+}
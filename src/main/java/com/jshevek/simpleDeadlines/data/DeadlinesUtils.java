@@ -3,40 +3,92 @@ package com.jshevek.simpleDeadlines.data;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
-import android.text.format.DateUtils;
 import android.util.Log;
 import com.jshevek.simpleDeadlines.R;
+import com.jshevek.simpleDeadlines.core.BinaryBackup;
+import com.jshevek.simpleDeadlines.core.DayClock;
+import com.jshevek.simpleDeadlines.core.Deadline;
+import com.jshevek.simpleDeadlines.core.LevelPolicy;
+import com.jshevek.simpleDeadlines.core.Levels;
+import com.jshevek.simpleDeadlines.core.ShareUriCodec;
 import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
 
 import java.io.*;
-import java.util.Calendar;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
+import java.util.TimeZone;
 
 public final class DeadlinesUtils {
     public static final String BACKUP_FILENAME = "backup.sd";
     public static final Uri SHARE_BASE_URI = Uri.parse("http://sd.casimir-lab.net");
     private static final String TAG = DeadlinesUtils.class.getSimpleName();
+    /**
+     * Number of rows between two progress reports.
+     */
+    private static final int PROGRESS_STEP = 100;
+    /**
+     * Number of rows inserted per transaction by {@link #performRecover(Context, Uri)}.
+     */
+    public static final int RECOVER_BATCH_SIZE = 500;
+    /**
+     * Size of the chunks read from a backup file.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Start of the text backup lines holding the ID of a deleted deadline instead of a share URI.
+     */
+    private static final char DELETED_PREFIX = '-';
+    /**
+     * Start of the first text backup line, holding the ID of the database backed up.
+     */
+    private static final char DATABASE_ID_PREFIX = '#';
 
-    public static final int LVL_TODAY = 1;
-    public static final int LVL_URGENT = 3;
-    public static final int LVL_WORRYING = 7;
-    public static final int LVL_NICE = 15;
-    public static final int LVL_NEVERMIND = -1;
-    public static final Map<Integer, Integer> LVL_ALL = new LinkedHashMap<>();
+    public static final int LVL_TODAY = Levels.TODAY;
+    public static final int LVL_URGENT = Levels.URGENT;
+    public static final int LVL_WORRYING = Levels.WORRYING;
+    public static final int LVL_NICE = Levels.NICE;
+    public static final int LVL_NEVERMIND = Levels.NEVERMIND;
 
-    static {
-        LVL_ALL.put(LVL_TODAY, R.color.today);
-        LVL_ALL.put(LVL_URGENT, R.color.urgent);
-        LVL_ALL.put(LVL_WORRYING, R.color.worrying);
-        LVL_ALL.put(LVL_NICE, R.color.nice);
-        LVL_ALL.put(LVL_NEVERMIND, R.color.nevermind);
+    /**
+     * Level policy built from the settings, null until first needed.
+     */
+    private static volatile LevelPolicy _levelPolicy;
+    /**
+     * Clock of the current day, null until first needed.
+     */
+    private static volatile DayClock _dayClock;
+
+    /**
+     * @return URI of a set of deadlines, see {@link DeadlinesContract.Deadlines#FILTER_IDS}.
+     */
+    public static Uri idsToUri(Collection<Long> ids) {
+        return DeadlinesContract.Deadlines.CONTENT_URI.buildUpon()
+                .appendPath(DeadlinesContract.Deadlines.FILTER_IDS)
+                .appendQueryParameter(DeadlinesContract.Deadlines.PARAM_IDS, TextUtils.join(",", ids))
+                .build();
+    }
+
+    /**
+     * Run a set method on the deadlines of a group, see {@link DeadlinesContract.Deadlines#METHOD_POSTPONE}.
+     *
+     * @param group Group of the deadlines, null for every group.
+     * @return Number of deadlines changed.
+     */
+    public static int applyToGroup(Context context, String method, String arg, String group) {
+        Bundle extras = new Bundle();
+        if (group != null)
+            extras.putString(DeadlinesContract.Deadlines.EXTRA_GROUP, group);
+
+        Bundle result = context.getContentResolver().call(DeadlinesContract.AUTHORITY_URI, method, arg, extras);
+        return result.getInt(DeadlinesContract.Deadlines.EXTRA_COUNT);
     }
 
     public static Uri contentValuesToShareUri(ContentValues values) {
@@ -54,68 +106,478 @@ public final class DeadlinesUtils {
         return builder.build();
     }
 
-    public static int dayCountToLvl(int days) {
-        Integer[] keys = LVL_ALL.keySet().toArray(new Integer[]{});
+    /**
+     * Level policy following the thresholds set in the settings. Built once, then shared until they change.
+     */
+    public static LevelPolicy getLevelPolicy(Context context) {
+        LevelPolicy policy = _levelPolicy;
+        if (policy == null)
+            _levelPolicy = policy = readLevelPolicy(context);
+        return policy;
+    }
+
+    /**
+     * Switch to new thresholds, and have the deadline lists and counts computed again with them.
+     *
+     * @param policy Policy matching the thresholds being saved in the settings.
+     */
+    public static void setLevelPolicy(Context context, LevelPolicy policy) {
+        if (policy.equals(_levelPolicy))
+            return;
+        _levelPolicy = policy;
 
-        for (int i = 0; i < keys.length - 1; ++i) {
-            if (days <= keys[i])
-                return keys[i];
+        ContentResolver cr = context.getContentResolver();
+        cr.notifyChange(DeadlinesContract.Deadlines.CONTENT_URI, null);
+        cr.notifyChange(DeadlinesContract.Count.CONTENT_URI, null);
+    }
+
+    /**
+     * Read a level threshold from the settings.
+     *
+     * @param keyId Resource ID of the preference key.
+     * @param def   Value when not set.
+     * @throws NumberFormatException If the stored value is not a number.
+     */
+    public static int readLevelThreshold(SharedPreferences sp, Context context, int keyId, int def) {
+        String value = sp.getString(context.getString(keyId), null);
+        return TextUtils.isEmpty(value) ? def : Integer.parseInt(value.trim());
+    }
+
+    private static LevelPolicy readLevelPolicy(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            return new LevelPolicy(
+                    readLevelThreshold(sp, context, R.string.pref_key_level_today, LVL_TODAY),
+                    readLevelThreshold(sp, context, R.string.pref_key_level_urgent, LVL_URGENT),
+                    readLevelThreshold(sp, context, R.string.pref_key_level_worrying, LVL_WORRYING),
+                    readLevelThreshold(sp, context, R.string.pref_key_level_nice, LVL_NICE));
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Invalid level thresholds, using the default ones", ex);
+            return LevelPolicy.DEFAULT;
         }
+    }
+
+    /**
+     * Receive the progress of a long running operation, from the thread running it.
+     */
+    public interface ProgressListener {
+        /**
+         * @param total Number of items to process, -1 if unknown.
+         */
+        void onProgress(int done, int total);
+    }
 
-        return LVL_NEVERMIND;
+    /**
+     * Outcome of {@link #performRecover(Context, Uri, int, ProgressListener)}.
+     */
+    public static final class RecoverResult {
+        /**
+         * Lines read as deadlines.
+         */
+        public int Parsed;
+        /**
+         * Deadlines added or replaced.
+         */
+        public int Inserted;
+        /**
+         * Deadlines deleted.
+         */
+        public int Deleted;
+        /**
+         * Malformed lines and deadlines the provider refused.
+         */
+        public int Rejected;
     }
 
     public static Uri performBackup(Context context) {
+        return performBackup(context, false, -1, 0, null);
+    }
+
+    /**
+     * Write deadlines to the backup file. Rows are written as the cursor goes, so this can take a while and should
+     * not run on the main thread.
+     * <p/>
+     * Deadlines are written with their IDs and the ID of the database, restoring a backup in the same database
+     * replaces the deadlines with the same IDs, see {@link #performRecover(Context, Uri, int, ProgressListener)}. An
+     * incremental backup only holds the deadlines added, modified or deleted between two change sequence numbers, see
+     * {@link #lastChangeSeq(Context)}. It is meant to be restored over the backups made before it, once they are
+     * delivered call {@link #confirmBackup(Context, long)}.
+     *
+     * @param binary   True for the compact {@link BinaryBackup} format, false for one share URI per line.
+     * @param since    Sequence number of the previous backup, -1 to back up all deadlines.
+     * @param until    Last sequence number to include in an incremental backup.
+     * @param listener Notified every few rows, may be null.
+     * @return URI of the backup file, {@link Uri#EMPTY} if it could not be written.
+     */
+    public static Uri performBackup(Context context, boolean binary, long since, long until,
+                                    ProgressListener listener) {
         ContentResolver cr = context.getContentResolver();
-        Uri.Builder uriBuilder = DeadlinesContract.Deadlines.CONTENT_URI.buildUpon();
-        Uri archivedUri = uriBuilder.appendPath(DeadlinesContract.Deadlines.FILTER_ARCHIVED).build();
-        MergeCursor c = new MergeCursor(new Cursor[]{
-                cr.query(DeadlinesContract.Deadlines.CONTENT_URI, null, null, null, null),
-                cr.query(archivedUri, null, null, null, null)
-        });
-
-        String buff = "";
-        ContentValues values = new ContentValues();
-        while (c.moveToNext()) {
-            DatabaseUtils.cursorRowToContentValues(c, values);
-            buff += (buff.equals("") ? "" : "\n");
-            buff += contentValuesToShareUri(values);
-            values.clear();
+        // Sorted on due dates, the binary format only stores the difference between two rows.
+        String orderBy = DeadlinesContract.Deadlines.DUE_DATE;
+        Cursor c;
+
+        if (since < 0) {
+            Uri.Builder uriBuilder = DeadlinesContract.Deadlines.CONTENT_URI.buildUpon();
+            Uri archivedUri = uriBuilder.appendPath(DeadlinesContract.Deadlines.FILTER_ARCHIVED).build();
+            c = new MergeCursor(new Cursor[]{
+                    cr.query(DeadlinesContract.Deadlines.CONTENT_URI, null, null, null, orderBy),
+                    cr.query(archivedUri, null, null, null, orderBy)
+            });
+        } else {
+            Uri changesUri = DeadlinesContract.Changes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(DeadlinesContract.Changes.PARAM_SINCE, String.valueOf(since))
+                    .build();
+            String where = DeadlinesContract.Changes.SEQ + " <= ?";
+            c = cr.query(changesUri, null, where, new String[]{String.valueOf(until)}, orderBy);
         }
 
+        OutputStream fos = null;
         try {
-            FileOutputStream fos = context.openFileOutput(BACKUP_FILENAME, Context.MODE_WORLD_READABLE);
-            fos.write(buff.getBytes());
+            long databaseId = databaseId(context);
+            fos = context.openFileOutput(BACKUP_FILENAME, Context.MODE_WORLD_READABLE);
+            if (binary)
+                writeBinaryBackup(fos, databaseId, c, listener);
+            else
+                writeTextBackup(fos, databaseId, c, listener);
+
             fos.close();
+            fos = null;
             return Uri.fromFile(context.getFileStreamPath(BACKUP_FILENAME));
         } catch (Exception ex) {
             Log.e(TAG, "Failed to perform backup", ex);
+        } finally {
+            c.close();
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to close backup file", ex);
+                }
+            }
         }
         return Uri.EMPTY;
     }
 
-    public static int performRecover(Context context, Uri uri) {
+    /**
+     * @return Sequence number of the last write on deadlines.
+     */
+    public static long lastChangeSeq(Context context) {
+        Bundle result = context.getContentResolver().call(DeadlinesContract.AUTHORITY_URI,
+                DeadlinesContract.Changes.METHOD_LAST_SEQ, null, null);
+        return result.getLong(DeadlinesContract.Changes.EXTRA_SEQ);
+    }
+
+    /**
+     * @return ID of the deadlines database, see {@link DeadlinesContract.Changes#METHOD_DATABASE_ID}.
+     */
+    public static long databaseId(Context context) {
+        Bundle result = context.getContentResolver().call(DeadlinesContract.AUTHORITY_URI,
+                DeadlinesContract.Changes.METHOD_DATABASE_ID, null, null);
+        return result.getLong(DeadlinesContract.Changes.EXTRA_DATABASE_ID);
+    }
+
+    /**
+     * Forget the changes up to a backup, only the changes since the last backup are needed.
+     */
+    public static void compactChanges(Context context, long seq) {
+        context.getContentResolver().call(DeadlinesContract.AUTHORITY_URI,
+                DeadlinesContract.Changes.METHOD_COMPACT, String.valueOf(seq), null);
+    }
+
+    /**
+     * Record a backup once it has been delivered: the next incremental backup starts from it, and the changes it
+     * holds are forgotten. Until then they are kept, a backup that never reaches its destination is simply made
+     * again. Goes through the provider, should not run on the main thread.
+     *
+     * @param seq Last sequence number included in the backup.
+     */
+    public static void confirmBackup(Context context, long seq) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putLong(context.getString(R.string.pref_key_backup_seq), seq).commit();
+        compactChanges(context, seq);
+    }
+
+    /**
+     * @return True if the current row of a change log cursor is a deletion.
+     */
+    private static boolean isDeletion(Cursor c, int opIdx) {
+        return opIdx != -1 && c.getInt(opIdx) == DeadlinesContract.Changes.OP_DELETE;
+    }
+
+    private static void writeTextBackup(OutputStream os, long databaseId, Cursor c, ProgressListener listener)
+            throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+        DeadlineRow row = new DeadlineRow(c);
+        int opIdx = c.getColumnIndex(DeadlinesContract.Changes.OP);
+        ShareUriCodec codec = new ShareUriCodec();
+        Deadline deadline = new Deadline();
+        StringBuilder line = new StringBuilder();
+        int total = c.getCount();
+        int done = 0;
+
+        out.append(DATABASE_ID_PREFIX).append(String.valueOf(databaseId));
+        while (c.moveToNext()) {
+            line.setLength(0);
+            line.append('\n');
+            if (isDeletion(c, opIdx))
+                out.append(line.append(DELETED_PREFIX).append(row.id()));
+            else {
+                row.toDeadline(deadline).Id = row.id();
+                out.append(codec.encode(deadline, line));
+            }
+
+            ++done;
+            if (listener != null && (done % PROGRESS_STEP == 0 || done == total))
+                listener.onProgress(done, total);
+        }
+        out.flush();
+    }
+
+    /**
+     * Rows are written first, then the deleted deadlines, both counts are read from the cursor beforehand.
+     */
+    private static void writeBinaryBackup(OutputStream os, long databaseId, Cursor c, ProgressListener listener)
+            throws IOException {
+        DeadlineRow row = new DeadlineRow(c);
+        int opIdx = c.getColumnIndex(DeadlinesContract.Changes.OP);
+        int total = c.getCount();
+        int done = 0;
+
+        List<Long> deleted = new ArrayList<>();
+        if (opIdx != -1) {
+            while (c.moveToNext()) {
+                if (isDeletion(c, opIdx))
+                    deleted.add(row.id());
+            }
+            c.moveToPosition(-1);
+        }
+
+        BinaryBackup.Writer out = new BinaryBackup.Writer(os, databaseId, total - deleted.size(), deleted.size());
+        while (c.moveToNext()) {
+            if (!isDeletion(c, opIdx))
+                out.write(row.id(), row.label(), row.group(), row.dueDate(), row.isDone());
+
+            ++done;
+            if (listener != null && (done % PROGRESS_STEP == 0 || done == total))
+                listener.onProgress(done, total);
+        }
+        for (long id : deleted)
+            out.writeDeleted(id);
+        out.finish();
+    }
+
+    public static RecoverResult performRecover(Context context, Uri uri) {
+        return performRecover(context, uri, RECOVER_BATCH_SIZE, null);
+    }
+
+    /**
+     * Restore the deadlines of a backup file, in either format. Deadlines are added, unless the backup comes from
+     * this very database: deadlines then replace those with the same IDs, and the deadlines deleted in an incremental
+     * backup are deleted. A backup restored on another device or over a database created again never touches the
+     * deadlines already there. Rows are inserted a batch at a time, each batch in one
+     * transaction, so this should not run on the main thread. Malformed lines are counted and skipped, a binary
+     * backup is only restored if its checksum matches.
+     *
+     * @param batchSize Number of rows per transaction.
+     * @param listener  Notified after each batch with the number of deadlines read so far, may be null.
+     */
+    public static RecoverResult performRecover(Context context, Uri uri, int batchSize, ProgressListener listener) {
         ContentResolver cr = context.getContentResolver();
+        RecoverResult result = new RecoverResult();
+        BufferedReader br = null;
+
         try {
-            InputStream is = cr.openInputStream(uri);
-            BufferedReader br = new BufferedReader(new InputStreamReader(is));
+            long databaseId = databaseId(context);
+            InputStream is = new BufferedInputStream(cr.openInputStream(uri), READ_BUFFER_SIZE);
+            if (BinaryBackup.isBinary(is)) {
+                is.close();
+                recoverBinary(cr, uri, databaseId, batchSize, listener, result);
+                return result;
+            }
+
+            br = new BufferedReader(new InputStreamReader(is, "UTF-8"), READ_BUFFER_SIZE);
+            List<ContentValues> batch = new ArrayList<>(batchSize);
+            List<Long> deleted = new ArrayList<>();
+            ShareUriCodec codec = new ShareUriCodec();
+            Deadline deadline = new Deadline();
+            boolean sameDatabase = false;
+            boolean first = true;
             String line;
-            int count = 0;
 
             while ((line = br.readLine()) != null) {
-                ContentValues values = shareUriToContentValues(Uri.parse(line));
-                cr.insert(DeadlinesContract.Deadlines.CONTENT_URI, values);
-                ++count;
-            }
+                line = line.trim();
+                if (TextUtils.isEmpty(line))
+                    continue;
+
+                try {
+                    if (first && line.charAt(0) == DATABASE_ID_PREFIX)
+                        sameDatabase = parseDatabaseId(line) == databaseId;
+                    else if (line.charAt(0) == DELETED_PREFIX) {
+                        deleted.add(parseDeletedId(line));
+                        ++result.Parsed;
+                    } else {
+                        codec.decode(line, deadline);
+                        if (!sameDatabase)
+                            deadline.Id = 0;
+                        batch.add(deadlineToContentValues(deadline));
+                        ++result.Parsed;
+                    }
+                } catch (IllegalArgumentException ex) {
+                    Log.w(TAG, "Rejected backup line: " + line, ex);
+                    ++result.Rejected;
+                }
+                first = false;
 
-            return count;
+                if (batch.size() == batchSize)
+                    recoverBatch(cr, batch, result, listener);
+            }
+            recoverBatch(cr, batch, result, listener);
+            recoverDeletions(cr, deleted, sameDatabase, batchSize, result, listener);
         } catch (FileNotFoundException ex) {
             Log.e(TAG, "Backup file not found", ex);
         } catch (IOException ex) {
             Log.e(TAG, "Failed to read backup file", ex);
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to close backup file", ex);
+                }
+            }
         }
 
-        return 0;
+        return result;
+    }
+
+    /**
+     * Read a binary backup twice: once to check it, then to insert its rows.
+     *
+     * @param databaseId ID of the database restored to, IDs are dropped from backups of other databases.
+     */
+    private static void recoverBinary(ContentResolver cr, Uri uri, long databaseId, int batchSize,
+                                      ProgressListener listener, RecoverResult result) throws IOException {
+        InputStream is = cr.openInputStream(uri);
+        try {
+            BinaryBackup.Reader reader = new BinaryBackup.Reader(is);
+            try {
+                while (reader.next()) {
+                }
+                while (reader.nextDeleted()) {
+                }
+                reader.finish();
+            } catch (IOException ex) {
+                Log.e(TAG, "Corrupted backup file", ex);
+                result.Rejected = reader.getCount() + reader.getDeletedCount();
+                return;
+            }
+        } finally {
+            is.close();
+        }
+
+        is = cr.openInputStream(uri);
+        try {
+            BinaryBackup.Reader reader = new BinaryBackup.Reader(is);
+            boolean sameDatabase = reader.getDatabaseId() == databaseId;
+            Deadline deadline = new Deadline();
+            List<ContentValues> batch = new ArrayList<>(batchSize);
+            while (reader.next()) {
+                if (TextUtils.isEmpty(reader.Label)) {
+                    ++result.Rejected;
+                    continue;
+                }
+
+                deadline.set(reader.Label, reader.Group, reader.DueDate, reader.Done).Id = sameDatabase ? reader.Id : 0;
+                batch.add(deadlineToContentValues(deadline));
+                ++result.Parsed;
+
+                if (batch.size() == batchSize)
+                    recoverBatch(cr, batch, result, listener);
+            }
+            recoverBatch(cr, batch, result, listener);
+
+            List<Long> deleted = new ArrayList<>(reader.getDeletedCount());
+            while (reader.nextDeleted()) {
+                deleted.add(reader.Id);
+                ++result.Parsed;
+            }
+            recoverDeletions(cr, deleted, sameDatabase, batchSize, result, listener);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void recoverBatch(ContentResolver cr, List<ContentValues> batch, RecoverResult result,
+                                     ProgressListener listener) {
+        if (batch.isEmpty())
+            return;
+
+        int inserted = cr.bulkInsert(DeadlinesContract.Deadlines.CONTENT_URI,
+                batch.toArray(new ContentValues[batch.size()]));
+        result.Inserted += inserted;
+        result.Rejected += batch.size() - inserted;
+        batch.clear();
+
+        if (listener != null)
+            listener.onProgress(result.Parsed, -1);
+    }
+
+    /**
+     * Delete the deadlines listed in a backup, a batch at a time.
+     *
+     * @param sameDatabase False if the backup comes from another database, its IDs are then ignored.
+     */
+    private static void recoverDeletions(ContentResolver cr, List<Long> ids, boolean sameDatabase, int batchSize,
+                                         RecoverResult result, ProgressListener listener) {
+        if (!sameDatabase) {
+            if (!ids.isEmpty())
+                Log.i(TAG, "Ignored deleted deadlines of another database. {count: " + ids.size() + "}");
+            return;
+        }
+
+        for (int start = 0; start < ids.size(); start += batchSize) {
+            List<Long> batch = ids.subList(start, Math.min(start + batchSize, ids.size()));
+            result.Deleted += cr.delete(idsToUri(batch), null, null);
+
+            if (listener != null)
+                listener.onProgress(result.Parsed, -1);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the line does not hold a valid ID.
+     */
+    private static long parseDatabaseId(String line) {
+        String id = line.substring(1);
+        if (id.isEmpty() || !TextUtils.isDigitsOnly(id))
+            throw new IllegalArgumentException(String.format("Malformed database ID: %s", line));
+        return Long.parseLong(id);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the line does not hold a valid ID.
+     */
+    private static long parseDeletedId(String line) {
+        String id = line.substring(1);
+        if (id.isEmpty() || !TextUtils.isDigitsOnly(id))
+            throw new IllegalArgumentException(String.format("Malformed deleted deadline: %s", line));
+        return Long.parseLong(id);
+    }
+
+    /**
+     * Convert a deadline to the values inserted by the provider. The ID is only set when the deadline has one.
+     */
+    public static ContentValues deadlineToContentValues(Deadline deadline) {
+        ContentValues values = new ContentValues(5);
+        if (deadline.Id != 0)
+            values.put(DeadlinesContract.Deadlines.ID, deadline.Id);
+        values.put(DeadlinesContract.Deadlines.LABEL, deadline.Label);
+        values.put(DeadlinesContract.Deadlines.GROUP, deadline.Group);
+        values.put(DeadlinesContract.Deadlines.DUE_DATE, deadline.DueDate);
+        values.put(DeadlinesContract.Deadlines.DONE, deadline.Done
+                ? DeadlinesContract.Deadlines.STATE_DONE
+                : DeadlinesContract.Deadlines.STATE_NOT_DONE);
+        return values;
     }
 
     public static ContentValues shareUriToContentValues(Uri uri) {
@@ -146,11 +608,27 @@ public final class DeadlinesUtils {
     }
 
     public static int timeToDayCount(long time) {
-        Calendar today = Calendar.getInstance();
-        today.set(Calendar.HOUR_OF_DAY, 0);
-        long todayDays = today.getTimeInMillis() / DateUtils.DAY_IN_MILLIS;
-        long deadlineDays = time / DateUtils.DAY_IN_MILLIS;
+        return getDayClock().dayCount(time);
+    }
+
+    /**
+     * Clock of the current day, built once then shared until the date, the time or the time zone changes.
+     */
+    public static DayClock getDayClock() {
+        DayClock clock = _dayClock;
+        if (clock == null)
+            _dayClock = clock = new DayClock(System.currentTimeMillis(), TimeZone.getDefault());
+        return clock;
+    }
 
-        return (int) (deadlineDays - todayDays);
+    /**
+     * Drop the clock of the current day, and have the deadline lists and counts computed again for the new one.
+     */
+    public static void resetDayClock(Context context) {
+        _dayClock = null;
+
+        ContentResolver cr = context.getContentResolver();
+        cr.notifyChange(DeadlinesContract.Deadlines.CONTENT_URI, null);
+        cr.notifyChange(DeadlinesContract.Count.CONTENT_URI, null);
     }
 }
@@ -0,0 +1,150 @@
+package com.jshevek.simpleDeadlines.data;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.BaseAdapter;
+import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write the done states of deadlines behind the list: a tap shows at once, and the taps of a burst are written
+ * together, in a single transaction notifying the list once, after a short pause.
+ * <p/>
+ * States queued or written but not yet read back by the list override those of its cursor. Only meant to be used
+ * from the main thread, writes go through the serial {@link AsyncTask} executor.
+ */
+public class DoneWriter {
+    private static final String TAG = DoneWriter.class.getSimpleName();
+    /**
+     * Time without a tap before the queued states are written, in milliseconds.
+     */
+    private static final long DEBOUNCE_DELAY = 600;
+
+    private final Context _context;
+    private final BaseAdapter _adapter;
+    private final Handler _handler = new Handler();
+    private final Runnable _flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    /**
+     * States still to write, by deadline ID.
+     */
+    private final Map<Long, Boolean> _pending = new HashMap<>();
+    /**
+     * States written or being written, kept until a new cursor reads them back.
+     */
+    private final Map<Long, Boolean> _written = new HashMap<>();
+    private int _inFlight;
+
+    /**
+     * @param adapter Adapter showing the deadlines, refreshed if a write fails.
+     */
+    public DoneWriter(Context context, BaseAdapter adapter) {
+        _context = context.getApplicationContext();
+        _adapter = adapter;
+    }
+
+    /**
+     * Queue the done state of a deadline, replacing any state queued for it.
+     *
+     * @param stored State of the deadline in the current cursor, tapping back to it cancels the write.
+     */
+    public void setDone(long id, boolean done, boolean stored) {
+        if (done == stored && !_written.containsKey(id))
+            _pending.remove(id);
+        else
+            _pending.put(id, done);
+
+        _handler.removeCallbacks(_flush);
+        if (!_pending.isEmpty())
+            _handler.postDelayed(_flush, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * @param stored State of the deadline in the current cursor.
+     * @return The state to show for a deadline.
+     */
+    public boolean isDone(long id, boolean stored) {
+        if (_pending.isEmpty() && _written.isEmpty())
+            return stored;
+
+        Boolean done = _pending.get(id);
+        if (done == null)
+            done = _written.get(id);
+        return done == null ? stored : done;
+    }
+
+    /**
+     * Forget the written states once the adapter has a new cursor, unless a write has yet to complete.
+     */
+    public void onCursorChanged() {
+        if (_inFlight == 0)
+            _written.clear();
+    }
+
+    /**
+     * Write the queued states now.
+     */
+    public void flush() {
+        _handler.removeCallbacks(_flush);
+        if (_pending.isEmpty())
+            return;
+
+        List<Long> done = new ArrayList<>();
+        List<Long> notDone = new ArrayList<>();
+        for (Map.Entry<Long, Boolean> entry : _pending.entrySet())
+            (entry.getValue() ? done : notDone).add(entry.getKey());
+
+        // One update per state, the provider notifies the lists, groups and count of these rows once for the batch.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(2);
+        if (!done.isEmpty())
+            operations.add(update(done, DeadlinesContract.Deadlines.STATE_DONE));
+        if (!notDone.isEmpty())
+            operations.add(update(notDone, DeadlinesContract.Deadlines.STATE_NOT_DONE));
+
+        _written.putAll(_pending);
+        _pending.clear();
+        ++_inFlight;
+        new WriteTask().execute(operations);
+    }
+
+    private static ContentProviderOperation update(List<Long> ids, int state) {
+        return ContentProviderOperation.newUpdate(DeadlinesUtils.idsToUri(ids))
+                .withValue(DeadlinesContract.Deadlines.DONE, state)
+                .build();
+    }
+
+    private class WriteTask extends AsyncTask<ArrayList<ContentProviderOperation>, Void, Boolean> {
+        @SafeVarargs
+        @Override
+        protected final Boolean doInBackground(ArrayList<ContentProviderOperation>... params) {
+            try {
+                _context.getContentResolver().applyBatch(DeadlinesContract.AUTHORITY, params[0]);
+                return true;
+            } catch (Exception ex) {
+                Log.e(TAG, "Failed to write done states", ex);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean success) {
+            --_inFlight;
+            if (!success) {
+                // Show the stored states again.
+                _written.clear();
+                _adapter.notifyDataSetChanged();
+            }
+        }
+    }
+}
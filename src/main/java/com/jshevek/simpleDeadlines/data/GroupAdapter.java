@@ -3,7 +3,6 @@ package com.jshevek.simpleDeadlines.data;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.support.annotation.NonNull;
 import android.widget.SimpleCursorAdapter;
 
@@ -13,6 +12,10 @@ import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
 public class GroupAdapter extends SimpleCursorAdapter {
     private static final String[] FromCols = {DeadlinesContract.Deadlines.GROUP};
     private static final int[] ToIDs = {R.id.group};
+    /**
+     * Groups starting with the typed text, where LIKE wildcards typed are escaped.
+     */
+    private static final String SELECTION = DeadlinesContract.Deadlines.GROUP + " LIKE ? ESCAPE '\\'";
     private final ContentResolver _cr;
 
     public GroupAdapter(Context context, Cursor c) {
@@ -26,9 +29,9 @@ public class GroupAdapter extends SimpleCursorAdapter {
         if (constraint == null)
             return super.runQueryOnBackgroundThread(null);
 
-        String filter = DatabaseUtils.sqlEscapeString(constraint + "%");
-        String selection = DeadlinesContract.Deadlines.GROUP + " LIKE " + filter;
-        return _cr.query(DeadlinesContract.Groups.CONTENT_URI, null, selection, null, null);
+        // Bound rather than written in the SQL, so the provider reuses the same statement whatever is typed.
+        String filter = constraint.toString().replaceAll("([\\\\%_])", "\\\\$1") + "%";
+        return _cr.query(DeadlinesContract.Groups.CONTENT_URI, null, SELECTION, new String[]{filter}, null);
     }
 
     @Override
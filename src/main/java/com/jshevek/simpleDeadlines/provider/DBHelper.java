@@ -1,36 +1,86 @@
 package com.jshevek.simpleDeadlines.provider;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 import com.jshevek.simpleDeadlines.R;
 
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Changes;
 import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Deadlines;
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Groups;
 
 public class DBHelper extends SQLiteOpenHelper {
-    private static final String DB_NAME = "deadlines.db";
-    private static final int DB_VERSION = 2;
+    static final String DB_NAME = "deadlines.db";
+    private static final int DB_VERSION = 8;
     private static final String TAG = DBHelper.class.getSimpleName();
+    /**
+     * Prepared statements kept per connection, enough for every query of the provider.
+     */
+    private static final int SQL_CACHE_SIZE = 64;
+
+    /**
+     * Column of the deadlines table referencing the groups table.
+     */
+    static final String GROUP_ID = "group_id";
+    /**
+     * Deadlines joined with their group name, with the same columns as {@link DeadlinesContract.Deadlines#ALL}.
+     */
+    static final String VIEW_DEADLINES = Deadlines.TABLE_NAME + "_view";
+
+    /**
+     * Full-text index of the labels and group names, the document ID of a row is the ID of its deadline.
+     */
+    static final String TABLE_SEARCH = Deadlines.TABLE_NAME + "_fts";
+    /**
+     * Single row table holding the random ID of this database, see {@link Changes#METHOD_DATABASE_ID}.
+     */
+    static final String TABLE_IDENTITY = "identity";
+    static final String DATABASE_ID = "database_id";
+
+    /**
+     * Index used by the count query and the archived/in progress filters.
+     */
+    static final String INDEX_DONE_DUE_DATE = Deadlines.TABLE_NAME + "_done_due_date";
+    /**
+     * Index used by the group filters and the group listings.
+     */
+    static final String INDEX_GROUP_DONE_DUE_DATE = Deadlines.TABLE_NAME + "_group_done_due_date";
 
     private final Context _context;
 
     public DBHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
         _context = context;
+
+        // Write-ahead logging lets the framework open a pool of read connections, so the widget, the notification
+        // and the loaders keep reading while the editor writes.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly())
+            db.enableWriteAheadLogging();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE " + Deadlines.TABLE_NAME + "("
-                + Deadlines.ID + " INTEGER PRIMARY KEY, "
-                + Deadlines.LABEL + " TEXT, "
-                + Deadlines.GROUP + " TEXT, "
-                + Deadlines.DUE_DATE + " INTEGER, "
-                + Deadlines.DONE + " INTEGER"
-                + ");");
+        createGroups(db);
+        createDeadlines(db, Deadlines.TABLE_NAME);
+        createIndexes(db);
+        createView(db);
+        createTriggers(db);
+        createSearch(db);
+        createSearchTriggers(db);
+        createChanges(db);
+        createIdentity(db);
     }
 
     @Override
@@ -39,21 +89,276 @@ public class DBHelper extends SQLiteOpenHelper {
         switch (oldVersion) {
             case 1:
                 v2(db);
+            case 2:
+                v3(db);
+            case 3:
+                v4(db);
+            case 4:
+                v5(db);
+            case 5:
+                v6(db);
+            case 6:
+                v7(db);
+            case 7:
+                v8(db);
         }
     }
 
+    private static void createGroups(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Groups.TABLE_NAME + "("
+                + Groups.ID + " INTEGER PRIMARY KEY, "
+                + Groups.NAME + " TEXT NOT NULL UNIQUE, "
+                + Groups.ACTIVE_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                + Groups.DONE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+    }
+
+    private static void createDeadlines(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + "("
+                + Deadlines.ID + " INTEGER PRIMARY KEY, "
+                + Deadlines.LABEL + " TEXT, "
+                + GROUP_ID + " INTEGER NOT NULL REFERENCES " + Groups.TABLE_NAME + "(" + Groups.ID + "), "
+                + Deadlines.DUE_DATE + " INTEGER, "
+                + Deadlines.DONE + " INTEGER"
+                + ");");
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + INDEX_DONE_DUE_DATE
+                + " ON " + Deadlines.TABLE_NAME + "("
+                + Deadlines.DONE + ", "
+                + Deadlines.DUE_DATE
+                + ");");
+        db.execSQL("CREATE INDEX " + INDEX_GROUP_DONE_DUE_DATE
+                + " ON " + Deadlines.TABLE_NAME + "("
+                + GROUP_ID + ", "
+                + Deadlines.DONE + ", "
+                + Deadlines.DUE_DATE
+                + ");");
+    }
+
+    private static void createView(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + VIEW_DEADLINES + " AS SELECT "
+                + "d." + Deadlines.ID + " AS " + Deadlines.ID + ", "
+                + "d." + Deadlines.LABEL + " AS " + Deadlines.LABEL + ", "
+                + "g." + Groups.NAME + " AS " + Deadlines.GROUP + ", "
+                + "d." + Deadlines.DUE_DATE + " AS " + Deadlines.DUE_DATE + ", "
+                + "d." + Deadlines.DONE + " AS " + Deadlines.DONE + " "
+                + "FROM " + Deadlines.TABLE_NAME + " d "
+                + "JOIN " + Groups.TABLE_NAME + " g ON g." + Groups.ID + " = d." + GROUP_ID + ";");
+    }
+
+    /**
+     * Keep the per group counts up to date and drop groups without any deadline left.
+     */
+    private static void createTriggers(SQLiteDatabase db) {
+        String activeCount = Groups.ACTIVE_COUNT + " = " + Groups.ACTIVE_COUNT;
+        String doneCount = Groups.DONE_COUNT + " = " + Groups.DONE_COUNT;
+        String dropEmpty = "DELETE FROM " + Groups.TABLE_NAME + " "
+                + "WHERE " + Groups.ID + " = OLD." + GROUP_ID + " "
+                + "AND " + Groups.ACTIVE_COUNT + " = 0 AND " + Groups.DONE_COUNT + " = 0;";
+        String addNew = "UPDATE " + Groups.TABLE_NAME + " SET "
+                + activeCount + " + (NEW." + Deadlines.DONE + " IS NOT 1), "
+                + doneCount + " + (NEW." + Deadlines.DONE + " IS 1) "
+                + "WHERE " + Groups.ID + " = NEW." + GROUP_ID + ";";
+        String removeOld = "UPDATE " + Groups.TABLE_NAME + " SET "
+                + activeCount + " - (OLD." + Deadlines.DONE + " IS NOT 1), "
+                + doneCount + " - (OLD." + Deadlines.DONE + " IS 1) "
+                + "WHERE " + Groups.ID + " = OLD." + GROUP_ID + ";";
+
+        db.execSQL("CREATE TRIGGER " + Deadlines.TABLE_NAME + "_insert "
+                + "AFTER INSERT ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + addNew
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + Deadlines.TABLE_NAME + "_update "
+                + "AFTER UPDATE OF " + GROUP_ID + ", " + Deadlines.DONE + " ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + removeOld + " " + addNew + " " + dropEmpty
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + Deadlines.TABLE_NAME + "_delete "
+                + "AFTER DELETE ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + removeOld + " " + dropEmpty
+                + " END;");
+    }
+
+    private static void createSearch(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SEARCH + " USING fts4("
+                + Deadlines.LABEL + ", "
+                + Deadlines.GROUP
+                + ");");
+    }
+
+    /**
+     * Keep the full-text index in sync with the deadlines table. Group names never change, only the group of a
+     * deadline does.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        String groupName = "(SELECT " + Groups.NAME + " FROM " + Groups.TABLE_NAME + " "
+                + "WHERE " + Groups.ID + " = NEW." + GROUP_ID + ")";
+
+        db.execSQL("CREATE TRIGGER " + TABLE_SEARCH + "_insert "
+                + "AFTER INSERT ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + TABLE_SEARCH + "(docid, " + Deadlines.LABEL + ", " + Deadlines.GROUP + ") "
+                + "VALUES (NEW." + Deadlines.ID + ", NEW." + Deadlines.LABEL + ", " + groupName + ");"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + TABLE_SEARCH + "_update "
+                + "AFTER UPDATE OF " + Deadlines.LABEL + ", " + GROUP_ID + " ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + "UPDATE " + TABLE_SEARCH + " SET "
+                + Deadlines.LABEL + " = NEW." + Deadlines.LABEL + ", "
+                + Deadlines.GROUP + " = " + groupName + " "
+                + "WHERE docid = NEW." + Deadlines.ID + ";"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + TABLE_SEARCH + "_delete "
+                + "AFTER DELETE ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + TABLE_SEARCH + " WHERE docid = OLD." + Deadlines.ID + ";"
+                + " END;");
+    }
+
+    /**
+     * Log every write on the deadlines table, sequence numbers are never reused even once compacted.
+     */
+    private static void createChanges(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Changes.TABLE_NAME + "("
+                + Changes.SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Changes.DEADLINE_ID + " INTEGER NOT NULL, "
+                + Changes.OP + " INTEGER NOT NULL"
+                + ");");
+
+        String log = "INSERT INTO " + Changes.TABLE_NAME + "(" + Changes.DEADLINE_ID + ", " + Changes.OP + ") ";
+        db.execSQL("CREATE TRIGGER " + Changes.TABLE_NAME + "_insert "
+                + "AFTER INSERT ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + log + "VALUES (NEW." + Deadlines.ID + ", " + Changes.OP_INSERT + ");"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + Changes.TABLE_NAME + "_update "
+                + "AFTER UPDATE ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + log + "VALUES (NEW." + Deadlines.ID + ", " + Changes.OP_UPDATE + ");"
+                + " END;");
+        db.execSQL("CREATE TRIGGER " + Changes.TABLE_NAME + "_delete "
+                + "AFTER DELETE ON " + Deadlines.TABLE_NAME + " BEGIN "
+                + log + "VALUES (OLD." + Deadlines.ID + ", " + Changes.OP_DELETE + ");"
+                + " END;");
+    }
+
+    /**
+     * Give the database a random positive ID, a new one whenever it is created again.
+     */
+    private static void createIdentity(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_IDENTITY + "(" + DATABASE_ID + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + TABLE_IDENTITY + " VALUES ((RANDOM() & 9223372036854775807) | 1);");
+    }
+
     private void v2(SQLiteDatabase db) {
-        String sqlSelect = "SELECT " + Deadlines.ID + " "
-                + "FROM " + Deadlines.TABLE_NAME + " "
-                + "WHERE " + Deadlines.GROUP + " = '';";
         String sqlUpdate = "UPDATE " + Deadlines.TABLE_NAME + " "
-                + "SET " + Deadlines.GROUP + " = '" + _context.getString(R.string.default_group) + "' "
-                + "WHERE " + Deadlines.ID + " = ?;";
-        Cursor c = db.rawQuery(sqlSelect, null);
+                + "SET " + Deadlines.GROUP + " = ? "
+                + "WHERE " + Deadlines.GROUP + " = '';";
+        db.execSQL(sqlUpdate, new Object[]{_context.getString(R.string.default_group)});
+    }
+
+    private void v3(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_DONE_DUE_DATE
+                    + " ON " + Deadlines.TABLE_NAME + "(" + Deadlines.DONE + ", " + Deadlines.DUE_DATE + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_GROUP_DONE_DUE_DATE
+                    + " ON " + Deadlines.TABLE_NAME + "("
+                    + Deadlines.GROUP + ", " + Deadlines.DONE + ", " + Deadlines.DUE_DATE + ");");
+            db.execSQL("ANALYZE " + Deadlines.TABLE_NAME + ";");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Move group names to their own table, deadlines reference them by ID.
+     */
+    private void v4(SQLiteDatabase db) {
+        String tmpTable = Deadlines.TABLE_NAME + "_v4";
+        String[] defaultGroup = {_context.getString(R.string.default_group)};
+
+        db.beginTransaction();
+        try {
+            createGroups(db);
+            db.execSQL("INSERT INTO " + Groups.TABLE_NAME + "(" + Groups.NAME + ") "
+                    + "SELECT DISTINCT IFNULL(" + Deadlines.GROUP + ", ?) FROM " + Deadlines.TABLE_NAME + ";",
+                    defaultGroup);
+
+            createDeadlines(db, tmpTable);
+            db.execSQL("INSERT INTO " + tmpTable + " SELECT "
+                    + "d." + Deadlines.ID + ", d." + Deadlines.LABEL + ", g." + Groups.ID + ", "
+                    + "d." + Deadlines.DUE_DATE + ", d." + Deadlines.DONE + " "
+                    + "FROM " + Deadlines.TABLE_NAME + " d "
+                    + "JOIN " + Groups.TABLE_NAME + " g ON g." + Groups.NAME + " = IFNULL(d." + Deadlines.GROUP + ", ?);",
+                    defaultGroup);
+            db.execSQL("DROP TABLE " + Deadlines.TABLE_NAME + ";");
+            db.execSQL("ALTER TABLE " + tmpTable + " RENAME TO " + Deadlines.TABLE_NAME + ";");
+
+            db.execSQL("UPDATE " + Groups.TABLE_NAME + " SET "
+                    + Groups.ACTIVE_COUNT + " = (SELECT COUNT(*) FROM " + Deadlines.TABLE_NAME + " "
+                    + "WHERE " + GROUP_ID + " = " + Groups.TABLE_NAME + "." + Groups.ID + " "
+                    + "AND " + Deadlines.DONE + " IS NOT 1), "
+                    + Groups.DONE_COUNT + " = (SELECT COUNT(*) FROM " + Deadlines.TABLE_NAME + " "
+                    + "WHERE " + GROUP_ID + " = " + Groups.TABLE_NAME + "." + Groups.ID + " "
+                    + "AND " + Deadlines.DONE + " IS 1);");
+
+            createIndexes(db);
+            createView(db);
+            createTriggers(db);
+            db.execSQL("ANALYZE;");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Index labels and group names for full-text search.
+     */
+    private void v5(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            createSearch(db);
+            db.execSQL("INSERT INTO " + TABLE_SEARCH + "(docid, " + Deadlines.LABEL + ", " + Deadlines.GROUP + ") "
+                    + "SELECT " + Deadlines.ID + ", " + Deadlines.LABEL + ", " + Deadlines.GROUP + " "
+                    + "FROM " + VIEW_DEADLINES + ";");
+            createSearchTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Log the writes on deadlines from now on, for incremental backups.
+     */
+    private void v6(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            createChanges(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Give a state to deadlines without one, lists in progress now select deadlines not done by equality.
+     */
+    private void v7(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + Deadlines.TABLE_NAME + " "
+                + "SET " + Deadlines.DONE + " = " + Deadlines.STATE_NOT_DONE + " "
+                + "WHERE " + Deadlines.DONE + " IS NULL;");
+    }
 
-        while (c.moveToNext()) {
-            int id = c.getInt(0);
-            db.execSQL(sqlUpdate, new Object[]{id});
+    /**
+     * Identify the database, backups only replace or delete deadlines by ID in the database they come from.
+     */
+    private void v8(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            createIdentity(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 }
@@ -1,8 +1,12 @@
 package com.jshevek.simpleDeadlines.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
@@ -12,17 +16,27 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 
 import com.jshevek.simpleDeadlines.R;
+import com.jshevek.simpleDeadlines.core.LevelPolicy;
 import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
 
-import java.util.Calendar;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Changes;
 import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Deadlines;
+import static com.jshevek.simpleDeadlines.provider.DeadlinesContract.Groups;
 
 /**
  * @see DeadlinesContract
@@ -52,6 +66,26 @@ public class DeadlineProvider extends ContentProvider {
      * Matcher ID for a unique (by ID) deadline.
      */
     private static final int MATCH_DEADLINE_ID = 14;
+    /**
+     * Matcher ID for a search among deadlines.
+     */
+    private static final int MATCH_DEADLINES_SEARCH = 15;
+    /**
+     * Matcher ID for a search among archived deadlines.
+     */
+    private static final int MATCH_DEADLINES_ARCHIVED_SEARCH = 16;
+    /**
+     * Matcher ID for a set of deadlines given by ID.
+     */
+    private static final int MATCH_DEADLINES_IDS = 17;
+    /**
+     * Matcher ID for a search among the deadlines of a group.
+     */
+    private static final int MATCH_DEADLINES_GROUP_SEARCH = 18;
+    /**
+     * Matcher ID for a search among the archived deadlines of a group.
+     */
+    private static final int MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH = 19;
     /**
      * Matcher ID for the group pattern.
      */
@@ -64,6 +98,10 @@ public class DeadlineProvider extends ContentProvider {
      * Matcher ID for the in progress groups pattern.
      */
     private static final int MATCH_GROUP_IN_PROGRESS = 22;
+    /**
+     * Matcher ID for the change log.
+     */
+    private static final int MATCH_CHANGES = 30;
 
     private static final UriMatcher MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -86,6 +124,21 @@ public class DeadlineProvider extends ContentProvider {
         MATCHER.addURI(DeadlinesContract.AUTHORITY,
                 Deadlines.TABLE_NAME + "/#",
                 MATCH_DEADLINE_ID);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/search/*",
+                MATCH_DEADLINES_SEARCH);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/archived/search/*",
+                MATCH_DEADLINES_ARCHIVED_SEARCH);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/group/*/search/*",
+                MATCH_DEADLINES_GROUP_SEARCH);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/archived/group/*/search/*",
+                MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/" + Deadlines.FILTER_IDS,
+                MATCH_DEADLINES_IDS);
         MATCHER.addURI(DeadlinesContract.AUTHORITY,
                 DeadlinesContract.Groups.TABLE_NAME,
                 MATCH_GROUPS);
@@ -95,27 +148,313 @@ public class DeadlineProvider extends ContentProvider {
         MATCHER.addURI(DeadlinesContract.AUTHORITY,
                 Deadlines.TABLE_NAME + "/groups",
                 MATCH_GROUP_IN_PROGRESS);
+        MATCHER.addURI(DeadlinesContract.AUTHORITY,
+                Deadlines.TABLE_NAME + "/" + Changes.TABLE_NAME,
+                MATCH_CHANGES);
     }
 
+    /**
+     * Count of not done deadlines per level, computed in one pass over the done/due date index. Today's bucket
+     * includes overdue deadlines, overdue is reported on its own as well. The SQL text never changes so the
+     * statement is prepared once and then reused from the connection's statement cache.
+     */
+    private static final String SQL_COUNT = "SELECT "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " <= ?2 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " > ?2 AND " + Deadlines.DUE_DATE + " <= ?3 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " > ?3 AND " + Deadlines.DUE_DATE + " <= ?4 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " > ?4 AND " + Deadlines.DUE_DATE + " <= ?5 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " < ?1 THEN 1 ELSE 0 END), "
+            + "SUM(CASE WHEN " + Deadlines.DUE_DATE + " > ?5 THEN 1 ELSE 0 END) "
+            + "FROM " + Deadlines.TABLE_NAME + " "
+            + "WHERE " + Deadlines.DONE + " = " + Deadlines.STATE_NOT_DONE + ";";
+
+    /**
+     * Deadlines done and past, the others are in progress.
+     */
+    private static final String SQL_WHERE_ARCHIVED = Deadlines.DONE + " = 1 AND " + Deadlines.DUE_DATE + " < ?";
+
+    /**
+     * Deadlines in progress, as two conditions each served by the done/due date indexes in due date order: the
+     * deadlines not done, and those done but not past yet. See {@link #querySql}.
+     */
+    private static final String SQL_WHERE_PENDING = Deadlines.DONE + " = " + Deadlines.STATE_NOT_DONE;
+    private static final String SQL_WHERE_DONE_UPCOMING = Deadlines.DONE + " = " + Deadlines.STATE_DONE + " "
+            + "AND " + Deadlines.DUE_DATE + " >= ?";
+
+    /**
+     * Rows following or preceding a page key, bound to its due date twice then its ID. The due date bound comes
+     * first on its own so that it limits the range read from the index.
+     */
+    private static final String SQL_WHERE_AFTER_KEY = "(" + Deadlines.DUE_DATE + " >= ? "
+            + "AND (" + Deadlines.DUE_DATE + " > ? OR " + Deadlines.ID + " > ?))";
+    private static final String SQL_WHERE_BEFORE_KEY = "(" + Deadlines.DUE_DATE + " <= ? "
+            + "AND (" + Deadlines.DUE_DATE + " < ? OR " + Deadlines.ID + " < ?))";
+
+    /**
+     * Full-text matches with their rank, the number of matched words. The rank is read from the offsets of the
+     * matches, four numbers per matched word.
+     */
+    private static final String SEARCH_RANK = "search_rank";
+    private static final String SQL_SEARCH = "SELECT docid, "
+            + "(LENGTH(OFFSETS(" + DBHelper.TABLE_SEARCH + ")) "
+            + "- LENGTH(REPLACE(OFFSETS(" + DBHelper.TABLE_SEARCH + "), ' ', '')) + 1) / 4 AS " + SEARCH_RANK + " "
+            + "FROM " + DBHelper.TABLE_SEARCH + " "
+            + "WHERE " + DBHelper.TABLE_SEARCH + " MATCH ?";
+
+    /**
+     * Last change of each deadline after a sequence number, with the current values of the deadline. The deadline ID
+     * is returned as the row ID too, so changes read like deadlines. The tables are joined rather than the view, SQLite
+     * would read the whole view to join it on the right of a LEFT JOIN.
+     */
+    private static final String SQL_CHANGES = "SELECT "
+            + "c." + Changes.SEQ + " AS " + Changes.SEQ + ", "
+            + "c." + Changes.DEADLINE_ID + " AS " + Changes.DEADLINE_ID + ", "
+            + "c." + Changes.DEADLINE_ID + " AS " + Changes.ID + ", "
+            + "c." + Changes.OP + " AS " + Changes.OP + ", "
+            + "d." + Deadlines.LABEL + " AS " + Changes.LABEL + ", "
+            + "g." + Groups.NAME + " AS " + Changes.GROUP + ", "
+            + "d." + Deadlines.DUE_DATE + " AS " + Changes.DUE_DATE + ", "
+            + "d." + Deadlines.DONE + " AS " + Changes.DONE + " "
+            + "FROM " + Changes.TABLE_NAME + " c "
+            + "LEFT JOIN " + Deadlines.TABLE_NAME + " d ON d." + Deadlines.ID + " = c." + Changes.DEADLINE_ID + " "
+            + "LEFT JOIN " + Groups.TABLE_NAME + " g ON g." + Groups.ID + " = d." + DBHelper.GROUP_ID + " "
+            + "WHERE c." + Changes.SEQ + " IN ("
+            + "SELECT MAX(" + Changes.SEQ + ") FROM " + Changes.TABLE_NAME + " "
+            + "WHERE " + Changes.SEQ + " > ? GROUP BY " + Changes.DEADLINE_ID + ")";
+    /**
+     * Last sequence number handed out, which is still known once the changes have been compacted.
+     */
+    private static final String SQL_CHANGES_LAST_SEQ = "SELECT IFNULL("
+            + "(SELECT seq FROM sqlite_sequence WHERE name = ?), 0);";
+    private static final String SQL_DATABASE_ID = "SELECT " + DBHelper.DATABASE_ID + " "
+            + "FROM " + DBHelper.TABLE_IDENTITY + ";";
+    private static final String SQL_WHERE_CHANGES_SUPERSEDED = Changes.SEQ + " NOT IN ("
+            + "SELECT MAX(" + Changes.SEQ + ") FROM " + Changes.TABLE_NAME + " GROUP BY " + Changes.DEADLINE_ID + ")";
+    /**
+     * Committed writes between two checks of the size of the change log.
+     */
+    private static final int CHANGES_CHECK_INTERVAL = 100;
+    /**
+     * Number of changes logged since the last compaction before the log is compacted again.
+     */
+    private static final int CHANGES_COMPACT_GROWTH = 1000;
+
+    /**
+     * Set methods, see {@link Deadlines#METHOD_POSTPONE}. Conditions apply to the deadlines table, where groups are
+     * referenced by ID. Due dates are moved by calendar days, and stay at the start of a day across time changes.
+     */
+    private static final String SQL_WHERE_SET_PENDING = Deadlines.DONE + " = " + Deadlines.STATE_NOT_DONE;
+    private static final String SQL_WHERE_SET_ARCHIVED = Deadlines.DONE + " = " + Deadlines.STATE_DONE + " "
+            + "AND " + Deadlines.DUE_DATE + " < ?";
+    private static final String SQL_WHERE_SET_GROUP = DBHelper.GROUP_ID + " = ("
+            + "SELECT " + Groups.ID + " FROM " + Groups.TABLE_NAME + " WHERE " + Groups.NAME + " = ?)";
+    private static final String SQL_POSTPONE = "UPDATE " + Deadlines.TABLE_NAME + " "
+            + "SET " + Deadlines.DUE_DATE + " = STRFTIME('%s', " + Deadlines.DUE_DATE + " / 1000, 'unixepoch', "
+            + "'localtime', 'start of day', ?, 'utc') * 1000 "
+            + "WHERE ";
+
+    /**
+     * Maximum number of query SQL texts kept, see {@link #querySql}.
+     */
+    private static final int QUERY_CACHE_SIZE = 32;
+
+    private static final String SQL_ROW_STATE = "SELECT "
+            + Deadlines.GROUP + ", " + Deadlines.DUE_DATE + ", " + Deadlines.DONE + " "
+            + "FROM " + DBHelper.VIEW_DEADLINES + " "
+            + "WHERE " + Deadlines.ID + " = ?;";
+    /**
+     * State of the rows of a set write, followed by the list of their IDs or the subquery selecting them.
+     */
+    private static final String SQL_ROW_STATES = "SELECT "
+            + Deadlines.ID + ", " + Deadlines.GROUP + ", " + Deadlines.DUE_DATE + ", " + Deadlines.DONE + " "
+            + "FROM " + DBHelper.VIEW_DEADLINES + " "
+            + "WHERE " + Deadlines.ID + " IN (";
+    private static final String SQL_GROUP_HAS_ARCHIVED = "SELECT 1 FROM " + DBHelper.VIEW_DEADLINES + " "
+            + "WHERE " + Deadlines.GROUP + " = ?1 "
+            + "AND " + Deadlines.DONE + " = 1 AND " + Deadlines.DUE_DATE + " < ?2 "
+            + "AND " + Deadlines.ID + " <> ?3 LIMIT 1;";
+    private static final String SQL_GROUP_HAS_IN_PROGRESS = "SELECT 1 FROM " + DBHelper.VIEW_DEADLINES + " "
+            + "WHERE " + Deadlines.GROUP + " = ?1 "
+            + "AND NOT(" + Deadlines.DONE + " = 1 AND " + Deadlines.DUE_DATE + " < ?2) "
+            + "AND " + Deadlines.ID + " <> ?3 LIMIT 1;";
+
+    private static final String SQL_GROUP_INSERT = "INSERT OR IGNORE INTO " + Groups.TABLE_NAME + " "
+            + "(" + Groups.NAME + ") VALUES (?);";
+    private static final String SQL_GROUP_ID = "SELECT " + Groups.ID + " "
+            + "FROM " + Groups.TABLE_NAME + " "
+            + "WHERE " + Groups.NAME + " = ?;";
+    private static final String SQL_GROUP_DROP_EMPTY = "DELETE FROM " + Groups.TABLE_NAME + " "
+            + "WHERE " + Groups.ID + " = ? "
+            + "AND " + Groups.ACTIVE_COUNT + " = 0 "
+            + "AND " + Groups.DONE_COUNT + " = 0;";
+
+    /**
+     * Group listings, served from the groups table. The counts answer most groups, only groups holding done deadlines
+     * need a look at their due dates, through the group/done/due date index.
+     */
+    private static final String SQL_DONE_IN_GROUP = "SELECT 1 FROM " + Deadlines.TABLE_NAME + " "
+            + "WHERE " + DBHelper.GROUP_ID + " = " + Groups.TABLE_NAME + "." + Groups.ID + " "
+            + "AND " + Deadlines.DONE + " = 1 ";
+    private static final String SQL_WHERE_GROUP_ARCHIVED = Groups.DONE_COUNT + " > 0 "
+            + "AND EXISTS (" + SQL_DONE_IN_GROUP + "AND " + Deadlines.DUE_DATE + " < ?)";
+    private static final String SQL_WHERE_GROUP_IN_PROGRESS = Groups.ACTIVE_COUNT + " > 0 "
+            + "OR EXISTS (" + SQL_DONE_IN_GROUP + "AND " + Deadlines.DUE_DATE + " >= ?)";
+
+    /**
+     * Notification only URIs, see {@link #notificationUri(int, Uri)}.
+     */
+    private static final Uri NOTIFY_IN_PROGRESS_URI = Uri.withAppendedPath(Deadlines.CONTENT_URI, "in_progress");
+    private static final Uri NOTIFY_ARCHIVED_URI = Uri.withAppendedPath(Deadlines.CONTENT_URI,
+            Deadlines.FILTER_ARCHIVED);
+    private static final Uri NOTIFY_GROUPS_IN_PROGRESS_URI = Uri.withAppendedPath(
+            Groups.CONTENT_URI, "in_progress");
+    private static final Uri NOTIFY_GROUPS_ARCHIVED_URI = Uri.withAppendedPath(
+            Groups.CONTENT_URI, Deadlines.FILTER_ARCHIVED);
+
+    /**
+     * Positions of the buckets in the count cache, following {@link DeadlinesContract.CountColumns#ALL}.
+     */
+    private static final int COUNT_TODAY = 0;
+    private static final int COUNT_URGENT = 1;
+    private static final int COUNT_WORRYING = 2;
+    private static final int COUNT_NICE = 3;
+    private static final int COUNT_OVERDUE = 4;
+    private static final int COUNT_NEVERMIND = 5;
+
     private DBHelper _dbHelper;
 
+    /**
+     * Count cache, null when it has to be recomputed. Only valid for the day and the level policy it was computed
+     * with. Guarded by {@link #_countLock}.
+     * <p/>
+     * Writes are counted when they start and once committed, and the number of writes in progress is kept: counts
+     * computed meanwhile may or may not include them, so they are not cached. See {@link #beginCountWrite()}.
+     */
+    private final Object _countLock = new Object();
+    private int[] _counts;
+    private long _countsMidnight;
+    private LevelPolicy _countsPolicy;
+    private long _countWrites;
+    private int _countWriters;
+    private long _countHits;
+    private long _countMisses;
+
+    /**
+     * Query SQL texts by match code and client arguments, least recently used first. Also guards the counters.
+     */
+    private final Map<String, String> _querySql = new LinkedHashMap<String, String>(QUERY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > QUERY_CACHE_SIZE;
+        }
+    };
+    private long _querySqlBuilds;
+    private long _querySqlReuses;
+
+    /**
+     * Committed writes left before the size of the change log is checked, the first write checks it. Size of the log
+     * after it was last compacted. Guarded by {@link #_changesLock}.
+     */
+    private final Object _changesLock = new Object();
+    private int _writesBeforeChangesCheck;
+    private long _compactedChanges;
+
+    /**
+     * Batch in progress on the calling thread, null outside of {@link #applyBatch} and {@link #bulkInsert}.
+     */
+    private final ThreadLocal<Batch> _batch = new ThreadLocal<>();
+
     @Override
     public boolean onCreate() {
         _dbHelper = new DBHelper(getContext());
         return true;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        boolean success = false;
+
+        db.beginTransactionNonExclusive();
+        startBatch();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            try {
+                db.endTransaction();
+            } finally {
+                finishBatch(success);
+            }
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (MATCHER.match(uri) != MATCH_DEADLINES)
+            throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
+
+        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        boolean success = false;
+        int count = 0;
+
+        db.beginTransactionNonExclusive();
+        startBatch();
+        try {
+            for (ContentValues row : values) {
+                if (insert(uri, row) != null)
+                    ++count;
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } finally {
+            try {
+                db.endTransaction();
+            } finally {
+                finishBatch(success);
+            }
+        }
+        return count;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        if (MATCHER.match(uri) != MATCH_DEADLINE_ID)
+        int matchCode = MATCHER.match(uri);
+        if (matchCode == MATCH_DEADLINES_IDS)
+            return deleteSet(whereIds(uri), null);
+        if (matchCode != MATCH_DEADLINE_ID)
             throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
 
         SQLiteDatabase db = _dbHelper.getWritableDatabase();
-        String where = Deadlines.ID + " = " + uri.getLastPathSegment();
-        int ret = db.delete(Deadlines.TABLE_NAME, where, null);
+        long id = ContentUris.parseId(uri);
+        String where = Deadlines.ID + " = ?";
+        String[] whereArgs = {String.valueOf(id)};
+        Set<Uri> changes = new LinkedHashSet<>();
+        RowState before = null;
+        int ret = 0;
+        boolean written = false;
 
-        if (ret != -1)
-            getContext().getContentResolver().notifyChange(DeadlinesContract.AUTHORITY_URI, null);
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                before = readRowState(db, id);
+                ret = db.delete(Deadlines.TABLE_NAME, where, whereArgs);
+                if (ret > 0)
+                    collectChanges(db, id, before, null, changes);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = ret > 0;
+        } finally {
+            endCountWrite(written, before, null);
+        }
+
+        notifyChanges(changes);
         return ret;
     }
 
@@ -129,20 +468,51 @@ public class DeadlineProvider extends ContentProvider {
         if (MATCHER.match(uri) != MATCH_DEADLINES)
             throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
 
-        if (TextUtils.isEmpty(values.getAsString(Deadlines.GROUP))) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getContext());
-            String group = sp.getString(
-                    getContext().getString(R.string.pref_key_editor_group),
-                    getContext().getString(R.string.default_group)
-            );
-            values.put(Deadlines.GROUP, group);
-        }
+        if (TextUtils.isEmpty(values.getAsString(Deadlines.GROUP)))
+            values.put(Deadlines.GROUP, defaultGroup());
+        // Lists and counts only know the two states, a deadline without one is in progress.
+        if (values.getAsInteger(Deadlines.DONE) == null)
+            values.put(Deadlines.DONE, Deadlines.STATE_NOT_DONE);
 
         SQLiteDatabase db = _dbHelper.getWritableDatabase();
-        long id = db.insert(Deadlines.TABLE_NAME, null, values);
+        Long requestedId = values.getAsLong(Deadlines.ID);
+        RowState before = null;
+        RowState after = RowState.fromValues(values);
+        Set<Uri> changes = new LinkedHashSet<>();
+        long id = -1;
+        boolean written = false;
+
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                ContentValues row = toRow(db, values);
+                // A deadline given with the ID of an existing one replaces it, so a backup can be restored twice.
+                // Restores only give IDs for backups of this database, see Changes#METHOD_DATABASE_ID.
+                if (requestedId != null)
+                    before = readRowState(db, requestedId);
+                if (before != null) {
+                    row.remove(Deadlines.ID);
+                    if (db.update(Deadlines.TABLE_NAME, row, Deadlines.ID + " = ?",
+                            new String[]{String.valueOf(requestedId)}) > 0)
+                        id = requestedId;
+                } else
+                    id = db.insert(Deadlines.TABLE_NAME, null, row);
+                if (id != -1)
+                    collectChanges(db, id, before, after, changes);
+                else
+                    dropGroupIfEmpty(db, row);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = id != -1;
+        } finally {
+            endCountWrite(written, before, after);
+        }
 
-        if (id != -1) {
-            getContext().getContentResolver().notifyChange(DeadlinesContract.AUTHORITY_URI, null);
+        if (written) {
+            notifyChanges(changes);
             return ContentUris.withAppendedId(Deadlines.CONTENT_URI, id);
         }
         return null;
@@ -150,115 +520,1162 @@ public class DeadlineProvider extends ContentProvider {
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        String[] groupCols = {Deadlines.ID, Deadlines.GROUP};
         int matchCode = MATCHER.match(uri);
-        SQLiteDatabase db = _dbHelper.getReadableDatabase();
-        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
-        Cursor cursor = null;
+        Cursor cursor;
 
-        builder.setTables(Deadlines.TABLE_NAME);
+        if (matchCode == UriMatcher.NO_MATCH)
+            throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
 
-        /**
-         * Specific cases.
-         */
         if (matchCode == MATCH_COUNTS)
             cursor = queryCount();
-        else if (matchCode == MATCH_DEADLINE_ID) {
-            builder.appendWhere(Deadlines.ID + " = " + uri.getLastPathSegment());
-            cursor = builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
-        } else if (matchCode == MATCH_GROUPS) {
-            cursor = builder.query(db, groupCols, selection, selectionArgs,
-                    Deadlines.GROUP, null, sortOrder);
+        else {
+            Query query = matchCode == MATCH_DEADLINES_IDS
+                    ? buildIdsQuery(uri, projection, selection, selectionArgs, sortOrder)
+                    : buildQuery(matchCode, uri, projection, selection, selectionArgs, sortOrder);
+            cursor = _dbHelper.getReadableDatabase().rawQuery(query.Sql, query.Args);
         }
 
-        /**
-         * No need to continue if it was a specific case.
-         */
-        if (cursor != null) {
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
-            return cursor;
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri(matchCode, uri));
+        return cursor;
+    }
+
+    /**
+     * Plan SQLite chooses for the query of a URI, one row per step as returned by EXPLAIN QUERY PLAN. Lets tests
+     * check that lists, searches, counts and changes are read from the indexes.
+     *
+     * @param sortOrder Sort order given by the client, ignored by pages and counts.
+     */
+    Cursor explainQueryPlan(Uri uri, String sortOrder) {
+        int matchCode = MATCHER.match(uri);
+        Query query;
+
+        if (matchCode == MATCH_COUNTS)
+            query = new Query(SQL_COUNT, countArgs(todayMidnight(), DeadlinesUtils.getLevelPolicy(getContext())));
+        else if (matchCode == UriMatcher.NO_MATCH)
+            throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
+        else if (matchCode == MATCH_DEADLINES_IDS)
+            query = buildIdsQuery(uri, null, null, null, sortOrder);
+        else
+            query = buildQuery(matchCode, uri, null, null, null, sortOrder);
+        return _dbHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + query.Sql, query.Args);
+    }
+
+    /**
+     * Build the query of the deadlines listed in {@link Deadlines#PARAM_IDS}, it is not cached, see {@link #whereIds}.
+     */
+    private static Query buildIdsQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                                       String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(DBHelper.VIEW_DEADLINES);
+        builder.appendWhere(whereIds(uri));
+        return new Query(builder.buildQuery(projection, selection, null, null, sortOrder, null), selectionArgs);
+    }
+
+    /**
+     * Build the SQL of a query on deadlines, groups or changes, along with its arguments.
+     */
+    private Query buildQuery(int matchCode, Uri uri, String[] projection, String selection, String[] selectionArgs,
+                             String sortOrder) {
+        String[] args = queryArgs(matchCode, uri);
+        String keyset = null;
+        String limit = isList(matchCode) || isSearch(matchCode)
+                ? uri.getQueryParameter(Deadlines.PARAM_LIMIT)
+                : null;
+
+        // Pages are sorted on the due date then the ID, the last row of a page is the key of the next one.
+        if (limit != null && isList(matchCode)) {
+            boolean descending = uri.getBooleanQueryParameter(Deadlines.PARAM_DESCENDING, false);
+            String order = descending ? " DESC" : " ASC";
+            sortOrder = Deadlines.DUE_DATE + order + ", " + Deadlines.ID + order;
+
+            String after = uri.getQueryParameter(Deadlines.PARAM_AFTER);
+            if (after != null) {
+                String[] key = after.split(",");
+                if (key.length != 2 || !TextUtils.isDigitsOnly(key[1]))
+                    throw new IllegalArgumentException("Malformed page key. {uri: " + uri + "}");
+                keyset = descending ? SQL_WHERE_BEFORE_KEY : SQL_WHERE_AFTER_KEY;
+                args = DatabaseUtils.appendSelectionArgs(args, new String[]{key[0], key[0], key[1]});
+            }
         }
 
-        /**
-         * General cases.
-         */
-        String archivedSelection = Deadlines.DONE + " = 1 AND "
-                + Deadlines.DUE_DATE + " < " + String.valueOf(new Date().getTime());
-        if (matchCode != MATCH_DEADLINES_ARCHIVED
-                && matchCode != MATCH_DEADLINES_ARCHIVED_GROUP_LABEL
-                && matchCode != MATCH_GROUP_ARCHIVED)
-            archivedSelection = "NOT(" + archivedSelection + ")";
-        builder.appendWhere(archivedSelection);
+        String sql = querySql(matchCode, projection, selection, sortOrder, keyset, limit != null);
+        args = DatabaseUtils.appendSelectionArgs(args, selectionArgs);
+        // The second part of the union takes the same arguments, after the current time.
+        if (isInProgressList(matchCode)) {
+            String now = String.valueOf(System.currentTimeMillis());
+            args = DatabaseUtils.appendSelectionArgs(args,
+                    DatabaseUtils.appendSelectionArgs(new String[]{now}, args));
+        }
+        if (limit != null)
+            args = DatabaseUtils.appendSelectionArgs(args, new String[]{limit});
+        return new Query(sql, args);
+    }
+
+    public Cursor queryCount() {
+        MatrixCursor c = new MatrixCursor(DeadlinesContract.CountColumns.ALL, 1);
+        long midnight = todayMidnight();
+        LevelPolicy policy = DeadlinesUtils.getLevelPolicy(getContext());
+        int[] counts = null;
+        long writes;
+
+        synchronized (_countLock) {
+            if (_counts != null && _countsMidnight == midnight && _countsPolicy == policy) {
+                ++_countHits;
+                counts = _counts.clone();
+            } else
+                ++_countMisses;
+            writes = _countWrites;
+        }
+
+        if (counts == null) {
+            counts = computeCounts(midnight, policy);
+            synchronized (_countLock) {
+                // Drop the result if a write happened meanwhile, it may or may not include it.
+                if (writes == _countWrites && _countWriters == 0) {
+                    _counts = counts.clone();
+                    _countsMidnight = midnight;
+                    _countsPolicy = policy;
+                }
+            }
+        }
+
+        MatrixCursor.RowBuilder builder = c.newRow();
+        for (int count : counts)
+            builder.add(count);
+        return c;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Changes.METHOD_LAST_SEQ.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(Changes.EXTRA_SEQ, DatabaseUtils.longForQuery(_dbHelper.getReadableDatabase(),
+                    SQL_CHANGES_LAST_SEQ, new String[]{Changes.TABLE_NAME}));
+            return result;
+        }
+        if (Changes.METHOD_COMPACT.equals(method))
+            return compactChanges(arg);
+        if (Changes.METHOD_DATABASE_ID.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(Changes.EXTRA_DATABASE_ID, DatabaseUtils.longForQuery(_dbHelper.getReadableDatabase(),
+                    SQL_DATABASE_ID, null));
+            return result;
+        }
+        if (Deadlines.METHOD_POSTPONE.equals(method)
+                || Deadlines.METHOD_COMPLETE.equals(method)
+                || Deadlines.METHOD_MOVE.equals(method)
+                || Deadlines.METHOD_PURGE.equals(method))
+            return applyToSet(method, arg, extras);
+        if (!DeadlinesContract.Stats.METHOD.equals(method))
+            return super.call(method, arg, extras);
+
+        Bundle stats = new Bundle();
+        synchronized (_countLock) {
+            stats.putLong(DeadlinesContract.Stats.COUNT_CACHE_HITS, _countHits);
+            stats.putLong(DeadlinesContract.Stats.COUNT_CACHE_MISSES, _countMisses);
+        }
+        synchronized (_querySql) {
+            stats.putLong(DeadlinesContract.Stats.QUERY_SQL_BUILDS, _querySqlBuilds);
+            stats.putLong(DeadlinesContract.Stats.QUERY_SQL_REUSES, _querySqlReuses);
+        }
+        return stats;
+    }
+
+    /**
+     * Drop the changes already consumed, up to the given sequence number, and those superseded by a later change.
+     */
+    private Bundle compactChanges(String seq) {
+        if (TextUtils.isEmpty(seq) || !TextUtils.isDigitsOnly(seq))
+            throw new IllegalArgumentException("Malformed sequence number. {seq: " + seq + "}");
+
+        Bundle result = new Bundle();
+        result.putInt(Changes.EXTRA_COUNT, compactChanges(_dbHelper.getWritableDatabase(), Long.parseLong(seq)));
+        return result;
+    }
+
+    /**
+     * @param seq Sequence number of the last change consumed, -1 to only drop the superseded changes.
+     * @return Number of changes dropped.
+     */
+    private static int compactChanges(SQLiteDatabase db, long seq) {
+        int count = 0;
 
+        db.beginTransactionNonExclusive();
+        try {
+            if (seq >= 0)
+                count = db.delete(Changes.TABLE_NAME, Changes.SEQ + " <= ?", new String[]{String.valueOf(seq)});
+            count += db.delete(Changes.TABLE_NAME, SQL_WHERE_CHANGES_SUPERSEDED, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Compact the change log once it has grown enough since it was last compacted, whether or not backups are made.
+     * Changes are dropped up to the last backup delivered, the superseded ones only if there is none. Called after
+     * each committed write, the size of the log is only checked every few writes.
+     */
+    private void compactChangesIfNeeded() {
+        synchronized (_changesLock) {
+            if (--_writesBeforeChangesCheck > 0)
+                return;
+            _writesBeforeChangesCheck = CHANGES_CHECK_INTERVAL;
+
+            SQLiteDatabase db = _dbHelper.getWritableDatabase();
+            if (DatabaseUtils.queryNumEntries(db, Changes.TABLE_NAME) <= _compactedChanges + CHANGES_COMPACT_GROWTH)
+                return;
+
+            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getContext());
+            compactChanges(db, sp.getLong(getContext().getString(R.string.pref_key_backup_seq), -1));
+            _compactedChanges = DatabaseUtils.queryNumEntries(db, Changes.TABLE_NAME);
+        }
+    }
+
+    /**
+     * Build the SQL of a query, or get it back from the cache. Values that change from one query to another (current
+     * time, group name, ID) are never part of the SQL, they are bound from {@link #queryArgs(int, Uri)}, so the same
+     * text comes back and the connection reuses the statement it has already prepared.
+     * <p/>
+     * Lists of deadlines in progress are the union of two queries, they can only be sorted on returned columns.
+     *
+     * @param keyset  Condition selecting the rows after a page key, null if not needed.
+     * @param limited True to end the query with a bound limit.
+     */
+    private String querySql(int matchCode, String[] projection, String selection, String sortOrder,
+                            String keyset, boolean limited) {
+        String key = matchCode + "|" + Arrays.toString(projection) + "|" + selection + "|" + sortOrder
+                + "|" + keyset + "|" + limited;
+
+        synchronized (_querySql) {
+            String sql = _querySql.get(key);
+            if (sql != null) {
+                ++_querySqlReuses;
+                return sql;
+            }
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        switch (matchCode) {
+            case MATCH_DEADLINE_ID:
+                builder.setTables(DBHelper.VIEW_DEADLINES);
+                builder.appendWhere(Deadlines.ID + " = ?");
+                break;
+            case MATCH_DEADLINES:
+            case MATCH_DEADLINES_GROUP_LABEL:
+                builder.setTables(DBHelper.VIEW_DEADLINES);
+                builder.appendWhere(SQL_WHERE_PENDING);
+                break;
+            case MATCH_DEADLINES_ARCHIVED:
+            case MATCH_DEADLINES_ARCHIVED_GROUP_LABEL:
+                builder.setTables(DBHelper.VIEW_DEADLINES);
+                builder.appendWhere(SQL_WHERE_ARCHIVED);
+                break;
+            case MATCH_DEADLINES_SEARCH:
+            case MATCH_DEADLINES_ARCHIVED_SEARCH:
+            case MATCH_DEADLINES_GROUP_SEARCH:
+            case MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH:
+                // The deadlines are fetched by ID once matched, the full-text index does the search alone.
+                builder.setTables(DBHelper.VIEW_DEADLINES + " JOIN (" + SQL_SEARCH + ") s "
+                        + "ON s.docid = " + Deadlines.ID);
+                if (matchCode == MATCH_DEADLINES_SEARCH || matchCode == MATCH_DEADLINES_GROUP_SEARCH)
+                    builder.appendWhere("NOT(" + SQL_WHERE_ARCHIVED + ")");
+                else
+                    builder.appendWhere(SQL_WHERE_ARCHIVED);
+                if (TextUtils.isEmpty(sortOrder))
+                    sortOrder = SEARCH_RANK + " DESC, " + Deadlines.DUE_DATE;
+                break;
+            case MATCH_GROUPS:
+                builder.setTables(Groups.TABLE_NAME);
+                break;
+            case MATCH_GROUP_ARCHIVED:
+                builder.setTables(Groups.TABLE_NAME);
+                builder.appendWhere(SQL_WHERE_GROUP_ARCHIVED);
+                break;
+            case MATCH_GROUP_IN_PROGRESS:
+                builder.setTables(Groups.TABLE_NAME);
+                builder.appendWhere(SQL_WHERE_GROUP_IN_PROGRESS);
+                break;
+            case MATCH_CHANGES:
+                builder.setTables("(" + SQL_CHANGES + ")");
+                if (TextUtils.isEmpty(sortOrder))
+                    sortOrder = Changes.SEQ;
+                break;
+        }
+
+        appendListFilters(builder, matchCode, keyset);
+
+        boolean groups = matchCode == MATCH_GROUPS
+                || matchCode == MATCH_GROUP_ARCHIVED
+                || matchCode == MATCH_GROUP_IN_PROGRESS;
+        if (groups) {
+            projection = new String[]{Groups.ID, Groups.NAME};
+            if (TextUtils.isEmpty(sortOrder))
+                sortOrder = Groups.NAME;
+        }
+
+        String sql;
+        if (isInProgressList(matchCode)) {
+            // A NOT over the archived condition would read and sort the whole table. Each part of the union follows
+            // an index in due date order instead, and SQLite merges them without sorting.
+            SQLiteQueryBuilder upcoming = new SQLiteQueryBuilder();
+            upcoming.setTables(DBHelper.VIEW_DEADLINES);
+            upcoming.appendWhere(SQL_WHERE_DONE_UPCOMING);
+            appendListFilters(upcoming, matchCode, keyset);
+
+            sql = builder.buildQuery(projection, selection, null, null, null, null)
+                    + " UNION ALL "
+                    + upcoming.buildQuery(projection, selection, null, null, null, null);
+            if (!TextUtils.isEmpty(sortOrder))
+                sql += " ORDER BY " + sortOrder;
+        } else
+            sql = builder.buildQuery(projection, selection, null, null, sortOrder, null);
+        // The builder only accepts a literal limit.
+        if (limited)
+            sql += " LIMIT ?";
+        synchronized (_querySql) {
+            ++_querySqlBuilds;
+            _querySql.put(key, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Add the group and page key conditions of a list of deadlines or of a search.
+     */
+    private static void appendListFilters(SQLiteQueryBuilder builder, int matchCode, String keyset) {
         if (matchCode == MATCH_DEADLINES_GROUP_LABEL
-                || matchCode == MATCH_DEADLINES_ARCHIVED_GROUP_LABEL) {
-            String group = DatabaseUtils.sqlEscapeString(uri.getLastPathSegment());
-            builder.appendWhere(" AND " + Deadlines.GROUP + " = " + group);
+                || matchCode == MATCH_DEADLINES_ARCHIVED_GROUP_LABEL
+                || matchCode == MATCH_DEADLINES_GROUP_SEARCH
+                || matchCode == MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH)
+            builder.appendWhere(" AND " + Deadlines.GROUP + " = ?");
+        if (keyset != null)
+            builder.appendWhere(" AND " + keyset);
+    }
+
+    /**
+     * @return Arguments bound to the part of the query {@link #querySql} adds, without the page key and limit. Lists
+     * of deadlines in progress take the current time again for the second part of their union.
+     */
+    private static String[] queryArgs(int matchCode, Uri uri) {
+        String now = String.valueOf(System.currentTimeMillis());
+
+        switch (matchCode) {
+            case MATCH_DEADLINE_ID:
+                return new String[]{uri.getLastPathSegment()};
+            case MATCH_DEADLINES:
+                return null;
+            case MATCH_DEADLINES_ARCHIVED:
+            case MATCH_GROUP_ARCHIVED:
+            case MATCH_GROUP_IN_PROGRESS:
+                return new String[]{now};
+            case MATCH_DEADLINES_GROUP_LABEL:
+                return new String[]{uri.getLastPathSegment()};
+            case MATCH_DEADLINES_ARCHIVED_GROUP_LABEL:
+                return new String[]{now, uri.getLastPathSegment()};
+            case MATCH_DEADLINES_SEARCH:
+            case MATCH_DEADLINES_ARCHIVED_SEARCH:
+                return new String[]{searchExpression(uri.getLastPathSegment()), now};
+            case MATCH_DEADLINES_GROUP_SEARCH:
+            case MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH:
+                return new String[]{searchExpression(uri.getLastPathSegment()), now, searchGroup(uri)};
+            case MATCH_CHANGES:
+                String since = uri.getQueryParameter(Changes.PARAM_SINCE);
+                if (since == null)
+                    since = "0";
+                if (since.isEmpty() || !TextUtils.isDigitsOnly(since))
+                    throw new IllegalArgumentException("Malformed sequence number. {uri: " + uri + "}");
+                return new String[]{since};
+            default:
+                return null;
         }
+    }
 
-        if (matchCode == MATCH_GROUP_ARCHIVED
-                || matchCode == MATCH_GROUP_IN_PROGRESS) {
-            cursor = builder.query(db, groupCols, selection, selectionArgs,
-                    Deadlines.GROUP, null, sortOrder);
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
-            return cursor;
+    /**
+     * Turn text typed by the user into a full-text query: every word has to match the start of a word of the label
+     * or the group name. Anything else is dropped so that the query syntax never gets in the way.
+     *
+     * @return The full-text query, empty (matching nothing) if there is no word to search.
+     */
+    private static String searchExpression(String text) {
+        StringBuilder expression = new StringBuilder();
+        for (String word : text.split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty())
+                continue;
+            if (expression.length() > 0)
+                expression.append(' ');
+            expression.append(word).append('*');
         }
+        return expression.toString();
+    }
 
-        cursor = builder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return cursor;
+    private int[] computeCounts(long midnight, LevelPolicy policy) {
+        int[] counts = new int[DeadlinesContract.CountColumns.ALL.length];
+
+        Cursor req = _dbHelper.getReadableDatabase().rawQuery(SQL_COUNT, countArgs(midnight, policy));
+        try {
+            req.moveToFirst();
+            for (int i = 0; i < counts.length; ++i)
+                counts[i] = req.getInt(i);
+        } finally {
+            req.close();
+        }
+        return counts;
     }
 
-    public Cursor queryCount() {
-        MatrixCursor c = new MatrixCursor(DeadlinesContract.CountColumns.ALL, 1);
-        // FIXME avoidable SQL ?
-        String sql = "SELECT COUNT(*) FROM " + Deadlines.TABLE_NAME
-                + " WHERE " + Deadlines.DUE_DATE
-                + " <= ? AND " + Deadlines.DONE + " = 0;";
-        SQLiteStatement req = _dbHelper.getReadableDatabase().compileStatement(sql);
-        String[] param = new String[1];
-        int[] levels = new int[]{
-                DeadlinesUtils.LVL_TODAY,
-                DeadlinesUtils.LVL_URGENT,
-                DeadlinesUtils.LVL_WORRYING,
-                DeadlinesUtils.LVL_NICE
+    /**
+     * @return Arguments of {@link #SQL_COUNT}: midnight, then the end of each level.
+     */
+    private static String[] countArgs(long midnight, LevelPolicy policy) {
+        return new String[]{
+                String.valueOf(midnight),
+                String.valueOf(levelEnd(midnight, policy, DeadlinesUtils.LVL_TODAY)),
+                String.valueOf(levelEnd(midnight, policy, DeadlinesUtils.LVL_URGENT)),
+                String.valueOf(levelEnd(midnight, policy, DeadlinesUtils.LVL_WORRYING)),
+                String.valueOf(levelEnd(midnight, policy, DeadlinesUtils.LVL_NICE))
         };
-        Calendar today = Calendar.getInstance();
-        today.set(Calendar.HOUR_OF_DAY, 0);
+    }
 
-        int count = 0;
-        MatrixCursor.RowBuilder builder = c.newRow();
-        for (int lvl : levels) {
-            long diff = today.getTimeInMillis() + lvl * DateUtils.DAY_IN_MILLIS;
-            param[0] = String.valueOf(diff);
-            int value = (int) DatabaseUtils.longForQuery(req, param) - count;
-            builder.add(value);
-            count += value;
+    /**
+     * Start a write the count cache depends on, before its transaction. Inside a batch, the batch is the write.
+     */
+    private void beginCountWrite() {
+        if (_batch.get() != null)
+            return;
+
+        synchronized (_countLock) {
+            ++_countWrites;
+            ++_countWriters;
+        }
+    }
+
+    /**
+     * End a write on a set of rows, once committed or rolled back. The count cache is dropped if rows were written.
+     */
+    private void endCountWrite(boolean written) {
+        endCountWrite(written, true, null, null);
+    }
+
+    /**
+     * End a write on a row, once committed or rolled back. The row is moved between the cached count buckets.
+     *
+     * @param written True if the row was written and committed.
+     * @param before  State of the row before the write, null if it did not exist.
+     * @param after   State of the row after the write, null if it does not exist anymore.
+     */
+    private void endCountWrite(boolean written, RowState before, RowState after) {
+        endCountWrite(written, false, before, after);
+    }
+
+    private void endCountWrite(boolean written, boolean invalidate, RowState before, RowState after) {
+        // Nothing is committed before the end of the batch.
+        Batch batch = _batch.get();
+        if (batch != null) {
+            batch.CountsChanged |= written;
+            return;
         }
 
-        return c;
+        long midnight = todayMidnight();
+        synchronized (_countLock) {
+            ++_countWrites;
+            --_countWriters;
+            if (!written || _counts == null)
+                return;
+            if (invalidate || _countsMidnight != midnight
+                    || _countsPolicy != DeadlinesUtils.getLevelPolicy(getContext())) {
+                _counts = null;
+                return;
+            }
+
+            if (before != null)
+                addToCounts(_counts, midnight, _countsPolicy, before, -1);
+            if (after != null)
+                addToCounts(_counts, midnight, _countsPolicy, after, 1);
+        }
+    }
+
+    private static void addToCounts(int[] counts, long midnight, LevelPolicy policy, RowState state, int delta) {
+        int bucket = bucketOf(state, midnight, policy);
+        if (bucket == -1)
+            return;
+
+        // Overdue deadlines are counted for today too.
+        if (bucket == COUNT_OVERDUE)
+            counts[COUNT_TODAY] += delta;
+        counts[bucket] += delta;
+    }
+
+    /**
+     * @return The count bucket of a row, -1 if it is not counted.
+     */
+    private static int bucketOf(RowState state, long midnight, LevelPolicy policy) {
+        if (state == null || !state.Pending)
+            return -1;
+
+        long dueDate = state.DueDate;
+        if (dueDate < midnight)
+            return COUNT_OVERDUE;
+        if (dueDate <= levelEnd(midnight, policy, DeadlinesUtils.LVL_TODAY))
+            return COUNT_TODAY;
+        if (dueDate <= levelEnd(midnight, policy, DeadlinesUtils.LVL_URGENT))
+            return COUNT_URGENT;
+        if (dueDate <= levelEnd(midnight, policy, DeadlinesUtils.LVL_WORRYING))
+            return COUNT_WORRYING;
+        if (dueDate <= levelEnd(midnight, policy, DeadlinesUtils.LVL_NICE))
+            return COUNT_NICE;
+        return COUNT_NEVERMIND;
+    }
+
+    /**
+     * @return Last due date counted in a level.
+     */
+    private static long levelEnd(long midnight, LevelPolicy policy, int level) {
+        return midnight + policy.thresholdOf(level) * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static RowState readRowState(SQLiteDatabase db, long id) {
+        Cursor c = db.rawQuery(SQL_ROW_STATE, new String[]{String.valueOf(id)});
+        try {
+            if (!c.moveToFirst())
+                return null;
+            return new RowState(c.getString(0),
+                    c.isNull(1) ? null : c.getLong(1),
+                    c.isNull(2) ? null : c.getInt(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Read the state of the rows a set write is about to change. Has to be called inside the write's transaction.
+     *
+     * @param where Condition of the write, on the deadlines table.
+     */
+    private static Map<Long, RowState> readRowStates(SQLiteDatabase db, String where, String[] whereArgs) {
+        return queryRowStates(db, SQL_ROW_STATES + "SELECT " + Deadlines.ID + " FROM " + Deadlines.TABLE_NAME + " "
+                + "WHERE " + where + ");", whereArgs);
+    }
+
+    /**
+     * Read the state of rows again once written, by ID as they may not match the condition of the write anymore.
+     */
+    private static Map<Long, RowState> readRowStates(SQLiteDatabase db, Set<Long> ids) {
+        if (ids.isEmpty())
+            return Collections.emptyMap();
+        return queryRowStates(db, SQL_ROW_STATES + TextUtils.join(",", ids) + ");", null);
+    }
+
+    private static Map<Long, RowState> queryRowStates(SQLiteDatabase db, String sql, String[] args) {
+        Map<Long, RowState> states = new LinkedHashMap<>();
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            while (c.moveToNext())
+                states.put(c.getLong(0), new RowState(c.getString(1),
+                        c.isNull(2) ? null : c.getLong(2),
+                        c.isNull(3) ? null : c.getInt(3)));
+        } finally {
+            c.close();
+        }
+        return states;
+    }
+
+    /**
+     * Find out what a write on a row changed. Has to be called inside the write's transaction, once the write is
+     * done, so that group listings can be checked.
+     *
+     * @param before  State of the row before the write, null if it did not exist.
+     * @param after   State of the row after the write, null if it does not exist anymore.
+     * @param changes Where to add the URIs to notify.
+     */
+    private void collectChanges(SQLiteDatabase db, long id, RowState before, RowState after, Set<Uri> changes) {
+        long now = System.currentTimeMillis();
+        long midnight = todayMidnight();
+        LevelPolicy policy = DeadlinesUtils.getLevelPolicy(getContext());
+
+        changes.add(ContentUris.withAppendedId(Deadlines.CONTENT_URI, id));
+        if (before != null)
+            changes.add(listUri(before.isArchived(now), before.Group));
+        if (after != null)
+            changes.add(listUri(after.isArchived(now), after.Group));
+
+        if (bucketOf(before, midnight, policy) != bucketOf(after, midnight, policy))
+            changes.add(DeadlinesContract.Count.CONTENT_URI);
+
+        if (!isMoved(before, after, now))
+            return;
+        if (before != null && !groupHasOtherRows(db, before, now, id))
+            changes.add(groupsUri(before, now));
+        if (after != null && !groupHasOtherRows(db, after, now, id))
+            changes.add(groupsUri(after, now));
+    }
+
+    /**
+     * Find out what a write on a set of rows changed, as {@link #collectChanges} does for a single row. The group
+     * listings a row moves between are notified without checking whether the group is left or was empty, as that
+     * would take a query per row.
+     *
+     * @param before  States of the rows before the write, see {@link #readRowStates(SQLiteDatabase, String, String[])}.
+     * @param after   States of the rows after the write, null if they were deleted.
+     * @param changes Where to add the URIs to notify.
+     */
+    private void collectSetChanges(Map<Long, RowState> before, Map<Long, RowState> after, Set<Uri> changes) {
+        long now = System.currentTimeMillis();
+        long midnight = todayMidnight();
+        LevelPolicy policy = DeadlinesUtils.getLevelPolicy(getContext());
+
+        for (Map.Entry<Long, RowState> entry : before.entrySet()) {
+            RowState rowBefore = entry.getValue();
+            RowState rowAfter = after == null ? null : after.get(entry.getKey());
+
+            changes.add(ContentUris.withAppendedId(Deadlines.CONTENT_URI, entry.getKey()));
+            changes.add(listUri(rowBefore.isArchived(now), rowBefore.Group));
+            if (rowAfter != null)
+                changes.add(listUri(rowAfter.isArchived(now), rowAfter.Group));
+
+            if (bucketOf(rowBefore, midnight, policy) != bucketOf(rowAfter, midnight, policy))
+                changes.add(DeadlinesContract.Count.CONTENT_URI);
+
+            if (isMoved(rowBefore, rowAfter, now)) {
+                changes.add(groupsUri(rowBefore, now));
+                if (rowAfter != null)
+                    changes.add(groupsUri(rowAfter, now));
+            }
+        }
+    }
+
+    /**
+     * @return True if a write moved a row to another list or group, or in or out of the table.
+     */
+    private static boolean isMoved(RowState before, RowState after, long now) {
+        return before == null || after == null
+                || before.isArchived(now) != after.isArchived(now)
+                || !TextUtils.equals(before.Group, after.Group);
+    }
+
+    /**
+     * @return URI to notify when the group listing holding a row changes.
+     */
+    private static Uri groupsUri(RowState state, long now) {
+        return state.isArchived(now) ? NOTIFY_GROUPS_ARCHIVED_URI : NOTIFY_GROUPS_IN_PROGRESS_URI;
+    }
+
+    /**
+     * @return True if the group of the given row has other rows in the same list (archived or in progress).
+     */
+    private static boolean groupHasOtherRows(SQLiteDatabase db, RowState state, long now, long id) {
+        // Null groups are not listed.
+        if (state.Group == null)
+            return true;
+
+        String sql = state.isArchived(now) ? SQL_GROUP_HAS_ARCHIVED : SQL_GROUP_HAS_IN_PROGRESS;
+        String[] args = {state.Group, String.valueOf(now), String.valueOf(id)};
+        Cursor c = db.rawQuery(sql, args);
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return True for the match codes returning a list of deadlines.
+     */
+    private static boolean isList(int matchCode) {
+        return matchCode == MATCH_DEADLINES
+                || matchCode == MATCH_DEADLINES_ARCHIVED
+                || matchCode == MATCH_DEADLINES_GROUP_LABEL
+                || matchCode == MATCH_DEADLINES_ARCHIVED_GROUP_LABEL;
+    }
+
+    /**
+     * @return True for the match codes returning a list of deadlines in progress, queried as a union.
+     */
+    private static boolean isInProgressList(int matchCode) {
+        return matchCode == MATCH_DEADLINES
+                || matchCode == MATCH_DEADLINES_GROUP_LABEL;
+    }
+
+    /**
+     * @return True for the match codes searching deadlines.
+     */
+    private static boolean isSearch(int matchCode) {
+        return matchCode == MATCH_DEADLINES_SEARCH
+                || matchCode == MATCH_DEADLINES_ARCHIVED_SEARCH
+                || matchCode == MATCH_DEADLINES_GROUP_SEARCH
+                || matchCode == MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH;
+    }
+
+    /**
+     * @return Group name of a search among the deadlines of a group, the segment before "search".
+     */
+    private static String searchGroup(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.get(segments.size() - 3);
+    }
+
+    /**
+     * URI to notify when a row of a list changes.
+     */
+    private static Uri listUri(boolean archived, String group) {
+        Uri uri = archived ? NOTIFY_ARCHIVED_URI : NOTIFY_IN_PROGRESS_URI;
+        if (group == null)
+            return uri;
+        return uri.buildUpon()
+                .appendPath(Deadlines.FILTER_GROUP)
+                .appendPath(group)
+                .build();
+    }
+
+    /**
+     * URI to observe for the result of a query. Lists and group listings are not observed on their own URIs because
+     * those are ancestors of one another, and any write under them would wake them all up.
+     */
+    private static Uri notificationUri(int matchCode, Uri uri) {
+        switch (matchCode) {
+            case MATCH_DEADLINES:
+            case MATCH_DEADLINES_SEARCH:
+                return NOTIFY_IN_PROGRESS_URI;
+            case MATCH_DEADLINES_ARCHIVED:
+            case MATCH_DEADLINES_ARCHIVED_SEARCH:
+                return NOTIFY_ARCHIVED_URI;
+            case MATCH_DEADLINES_GROUP_LABEL:
+                return listUri(false, uri.getLastPathSegment());
+            case MATCH_DEADLINES_ARCHIVED_GROUP_LABEL:
+                return listUri(true, uri.getLastPathSegment());
+            case MATCH_DEADLINES_GROUP_SEARCH:
+                return listUri(false, searchGroup(uri));
+            case MATCH_DEADLINES_ARCHIVED_GROUP_SEARCH:
+                return listUri(true, searchGroup(uri));
+            case MATCH_GROUP_IN_PROGRESS:
+                return NOTIFY_GROUPS_IN_PROGRESS_URI;
+            case MATCH_GROUP_ARCHIVED:
+                return NOTIFY_GROUPS_ARCHIVED_URI;
+            case MATCH_DEADLINES_IDS:
+            case MATCH_CHANGES:
+                // Every write notifies a URI below this one.
+                return Deadlines.CONTENT_URI;
+            default:
+                return uri;
+        }
+    }
+
+    /**
+     * Copy values to store them in the deadlines table, the group name is replaced by the ID of the group, which is
+     * created if needed.
+     */
+    private static ContentValues toRow(SQLiteDatabase db, ContentValues values) {
+        ContentValues row = new ContentValues(values);
+        if (!row.containsKey(Deadlines.GROUP))
+            return row;
+
+        String group = row.getAsString(Deadlines.GROUP);
+        row.remove(Deadlines.GROUP);
+        db.execSQL(SQL_GROUP_INSERT, new Object[]{group});
+        row.put(DBHelper.GROUP_ID, DatabaseUtils.longForQuery(db, SQL_GROUP_ID, new String[]{group}));
+        return row;
+    }
+
+    /**
+     * Drop the group of a row that has not been written, in case it was created for it.
+     */
+    private static void dropGroupIfEmpty(SQLiteDatabase db, ContentValues row) {
+        Long groupId = row.getAsLong(DBHelper.GROUP_ID);
+        if (groupId != null)
+            db.execSQL(SQL_GROUP_DROP_EMPTY, new Object[]{groupId});
+    }
+
+    /**
+     * @return Condition selecting the deadlines listed in {@link Deadlines#PARAM_IDS}. IDs are parsed then written in
+     * the SQL, there are too many possible lists for the statement to be worth caching.
+     */
+    private static String whereIds(Uri uri) {
+        String ids = uri.getQueryParameter(Deadlines.PARAM_IDS);
+        if (TextUtils.isEmpty(ids))
+            throw new IllegalArgumentException("Malformed ID list. {uri: " + uri + "}");
+
+        StringBuilder where = new StringBuilder(Deadlines.ID).append(" IN (");
+        int start = where.length();
+        for (String id : ids.split(",")) {
+            if (where.length() > start)
+                where.append(',');
+            try {
+                where.append(Long.parseLong(id));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Malformed ID list. {uri: " + uri + "}", ex);
+            }
+        }
+        return where.append(')').toString();
+    }
+
+    /**
+     * Run a set method on the deadlines of the scope given in the extras.
+     */
+    private Bundle applyToSet(String method, String arg, Bundle extras) {
+        List<String> args = new ArrayList<>();
+        String scope = whereScope(extras, args);
+        String[] scopeArgs = args.toArray(new String[args.size()]);
+        int count;
+
+        if (Deadlines.METHOD_POSTPONE.equals(method)) {
+            int days;
+            try {
+                days = Integer.parseInt(arg);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Malformed day count. {days: " + arg + "}", ex);
+            }
+            String shift = (days < 0 ? "" : "+") + days + " days";
+            count = postponeSet(shift, SQL_WHERE_SET_PENDING + scope, scopeArgs);
+        } else if (Deadlines.METHOD_COMPLETE.equals(method)) {
+            ContentValues values = new ContentValues(1);
+            values.put(Deadlines.DONE, Deadlines.STATE_DONE);
+            count = updateSet(values, SQL_WHERE_SET_PENDING + scope, scopeArgs);
+        } else if (Deadlines.METHOD_MOVE.equals(method)) {
+            // Unlike the other methods, a move is not limited by state, unscoped it would rewrite
+            // every deadline.
+            if (scope.isEmpty())
+                throw new IllegalArgumentException("Move needs a group or level scope. {group: "
+                        + arg + "}");
+            ContentValues values = new ContentValues(1);
+            values.put(Deadlines.GROUP, TextUtils.isEmpty(arg) ? defaultGroup() : arg);
+            count = updateSet(values, "1" + scope, scopeArgs);
+        } else {
+            if (TextUtils.isEmpty(arg) || !TextUtils.isDigitsOnly(arg))
+                throw new IllegalArgumentException("Malformed date. {date: " + arg + "}");
+            // Only archived deadlines go, whatever the date asked.
+            long before = Math.min(Long.parseLong(arg), System.currentTimeMillis());
+            count = deleteSet(SQL_WHERE_SET_ARCHIVED + scope,
+                    DatabaseUtils.appendSelectionArgs(new String[]{String.valueOf(before)}, scopeArgs));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(Deadlines.EXTRA_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Conditions limiting a set method to a group and a level, each starting with AND.
+     *
+     * @param args Where to add the arguments of the conditions.
+     */
+    private String whereScope(Bundle extras, List<String> args) {
+        if (extras == null)
+            return "";
+
+        StringBuilder where = new StringBuilder();
+        String group = extras.getString(Deadlines.EXTRA_GROUP);
+        if (group != null) {
+            where.append(" AND ").append(SQL_WHERE_SET_GROUP);
+            args.add(group);
+        }
+
+        if (extras.containsKey(Deadlines.EXTRA_LEVEL)) {
+            int level = extras.getInt(Deadlines.EXTRA_LEVEL);
+            long midnight = todayMidnight();
+            LevelPolicy policy = DeadlinesUtils.getLevelPolicy(getContext());
+
+            // As counted: overdue deadlines are today's, the last level has no end.
+            int previous = previousLevel(level);
+            if (previous != 0) {
+                where.append(" AND ").append(Deadlines.DUE_DATE).append(" > ?");
+                args.add(String.valueOf(levelEnd(midnight, policy, previous)));
+            }
+            if (level != DeadlinesUtils.LVL_NEVERMIND) {
+                where.append(" AND ").append(Deadlines.DUE_DATE).append(" <= ?");
+                args.add(String.valueOf(levelEnd(midnight, policy, level)));
+            }
+        }
+        return where.toString();
+    }
+
+    /**
+     * @return The level right before a level, 0 for the first one.
+     */
+    private static int previousLevel(int level) {
+        switch (level) {
+            case DeadlinesUtils.LVL_TODAY:
+                return 0;
+            case DeadlinesUtils.LVL_URGENT:
+                return DeadlinesUtils.LVL_TODAY;
+            case DeadlinesUtils.LVL_WORRYING:
+                return DeadlinesUtils.LVL_URGENT;
+            case DeadlinesUtils.LVL_NICE:
+                return DeadlinesUtils.LVL_WORRYING;
+            case DeadlinesUtils.LVL_NEVERMIND:
+                return DeadlinesUtils.LVL_NICE;
+            default:
+                throw new IllegalArgumentException("Unknown level. {level: " + level + "}");
+        }
+    }
+
+    /**
+     * Move the due dates of a set of deadlines in one statement.
+     *
+     * @param shift SQLite date modifier of the shift.
+     */
+    private int postponeSet(String shift, String where, String[] whereArgs) {
+        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        Set<Uri> changes = new LinkedHashSet<>();
+        int ret = 0;
+        boolean written = false;
+
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                Map<Long, RowState> before = readRowStates(db, where, whereArgs);
+                SQLiteStatement statement = db.compileStatement(SQL_POSTPONE + where);
+                try {
+                    statement.bindAllArgsAsStrings(DatabaseUtils.appendSelectionArgs(new String[]{shift}, whereArgs));
+                    ret = statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+                if (ret > 0)
+                    collectSetChanges(before, readRowStates(db, before.keySet()), changes);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = ret > 0;
+        } finally {
+            endCountWrite(written);
+        }
+
+        notifyChanges(changes);
+        return ret;
+    }
+
+    /**
+     * Delete a set of deadlines in one statement.
+     */
+    private int deleteSet(String where, String[] whereArgs) {
+        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        Set<Uri> changes = new LinkedHashSet<>();
+        int ret = 0;
+        boolean written = false;
+
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                Map<Long, RowState> before = readRowStates(db, where, whereArgs);
+                ret = db.delete(Deadlines.TABLE_NAME, where, whereArgs);
+                if (ret > 0)
+                    collectSetChanges(before, null, changes);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = ret > 0;
+        } finally {
+            endCountWrite(written);
+        }
+
+        notifyChanges(changes);
+        return ret;
+    }
+
+    /**
+     * Update a set of deadlines in one statement, the group being given by name as for a single row.
+     */
+    private int updateSet(ContentValues values, String where, String[] whereArgs) {
+        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        Set<Uri> changes = new LinkedHashSet<>();
+        int ret = 0;
+        boolean written = false;
+
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                Map<Long, RowState> before = readRowStates(db, where, whereArgs);
+                ContentValues row = toRow(db, values);
+                ret = db.update(Deadlines.TABLE_NAME, row, where, whereArgs);
+                if (ret > 0)
+                    collectSetChanges(before, readRowStates(db, before.keySet()), changes);
+                else
+                    dropGroupIfEmpty(db, row);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = ret > 0;
+        } finally {
+            endCountWrite(written);
+        }
+
+        notifyChanges(changes);
+        return ret;
+    }
+
+    /**
+     * Group given to deadlines created without one. Read once per batch.
+     */
+    private String defaultGroup() {
+        Batch batch = _batch.get();
+        if (batch != null && batch.DefaultGroup != null)
+            return batch.DefaultGroup;
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getContext());
+        String group = sp.getString(
+                getContext().getString(R.string.pref_key_editor_group),
+                getContext().getString(R.string.default_group)
+        );
+        if (batch != null)
+            batch.DefaultGroup = group;
+        return group;
+    }
+
+    /**
+     * Notify observers of some changes, or delay it to the end of the current batch.
+     */
+    private void notifyChanges(Set<Uri> uris) {
+        Batch batch = _batch.get();
+        if (batch != null) {
+            batch.Notifications.addAll(uris);
+            return;
+        }
+
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri uri : uris)
+            cr.notifyChange(uri, null);
+        if (!uris.isEmpty())
+            compactChangesIfNeeded();
+    }
+
+    private void startBatch() {
+        Batch batch = _batch.get();
+        if (batch != null) {
+            ++batch.Depth;
+            return;
+        }
+
+        beginCountWrite();
+        _batch.set(new Batch());
+    }
+
+    private void finishBatch(boolean success) {
+        Batch batch = _batch.get();
+        if (batch.Depth > 0) {
+            --batch.Depth;
+            return;
+        }
+        _batch.remove();
+
+        // Called once the outermost transaction is over, the writes of the batch are only visible from now on.
+        endCountWrite(success && batch.CountsChanged);
+        if (!success)
+            return;
+
+        ContentResolver cr = getContext().getContentResolver();
+        for (Uri uri : batch.Notifications)
+            cr.notifyChange(uri, null);
+        if (!batch.Notifications.isEmpty())
+            compactChangesIfNeeded();
+    }
+
+    private static long todayMidnight() {
+        return DeadlinesUtils.getDayClock().getMidnight();
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        if (MATCHER.match(uri) != MATCH_DEADLINE_ID)
+        int matchCode = MATCHER.match(uri);
+        if (matchCode != MATCH_DEADLINE_ID && matchCode != MATCH_DEADLINES_IDS)
             throw new IllegalArgumentException("Unknown or malformed URI. {uri: " + uri + "}");
 
-        if (TextUtils.isEmpty(values.getAsString(Deadlines.GROUP))) {
-            SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(getContext());
-            String group = sp.getString(
-                    getContext().getString(R.string.pref_key_editor_group),
-                    getContext().getString(R.string.default_group)
-            );
-            values.put(Deadlines.GROUP, group);
-        }
+        // Only a group explicitly cleared falls back to the default one, other updates keep theirs.
+        if (values.containsKey(Deadlines.GROUP) && TextUtils.isEmpty(values.getAsString(Deadlines.GROUP)))
+            values.put(Deadlines.GROUP, defaultGroup());
+        if (matchCode == MATCH_DEADLINES_IDS)
+            return updateSet(values, whereIds(uri), null);
 
         SQLiteDatabase db = _dbHelper.getWritableDatabase();
-        String where = Deadlines.ID + " = " + uri.getLastPathSegment();
-        int ret = db.update(Deadlines.TABLE_NAME, values, where, null);
+        long id = ContentUris.parseId(uri);
+        String where = Deadlines.ID + " = ?";
+        String[] whereArgs = {String.valueOf(id)};
+        Set<Uri> changes = new LinkedHashSet<>();
+        RowState before = null;
+        RowState after = null;
+        int ret = 0;
+        boolean written = false;
+
+        beginCountWrite();
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                before = readRowState(db, id);
+                ContentValues row = toRow(db, values);
+                ret = db.update(Deadlines.TABLE_NAME, row, where, whereArgs);
+                after = readRowState(db, id);
+                if (ret > 0)
+                    collectChanges(db, id, before, after, changes);
+                else
+                    dropGroupIfEmpty(db, row);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            written = ret > 0;
+        } finally {
+            endCountWrite(written, before, after);
+        }
 
-        if (ret != -1)
-            getContext().getContentResolver().notifyChange(DeadlinesContract.AUTHORITY_URI, null);
+        notifyChanges(changes);
         return ret;
     }
+
+    /**
+     * State shared by the writes of a single {@link #applyBatch} or {@link #bulkInsert} call.
+     */
+    private static class Batch {
+        public final Set<Uri> Notifications = new LinkedHashSet<>();
+        public String DefaultGroup;
+        public int Depth;
+        /**
+         * True once a write of the batch changed rows, the count cache is dropped when it is committed.
+         */
+        public boolean CountsChanged;
+    }
+
+    /**
+     * SQL of a query and the arguments to bind.
+     */
+    private static class Query {
+        public final String Sql;
+        public final String[] Args;
+
+        public Query(String sql, String[] args) {
+            Sql = sql;
+            Args = args;
+        }
+    }
+
+    /**
+     * The part of a row the count cache and the change notifications depend on.
+     */
+    private static class RowState {
+        public final String Group;
+        public final long DueDate;
+        public final boolean Pending;
+        public final boolean Done;
+
+        public RowState(String group, Long dueDate, Integer done) {
+            Group = group;
+            DueDate = dueDate == null ? 0 : dueDate;
+            Pending = dueDate != null && done != null && done == Deadlines.STATE_NOT_DONE;
+            Done = dueDate != null && done != null && done == Deadlines.STATE_DONE;
+        }
+
+        public boolean isArchived(long now) {
+            return Done && DueDate < now;
+        }
+
+        public static RowState fromValues(ContentValues values) {
+            return new RowState(values.getAsString(Deadlines.GROUP),
+                    values.getAsLong(Deadlines.DUE_DATE),
+                    values.getAsInteger(Deadlines.DONE));
+        }
+    }
 }
@@ -25,7 +25,9 @@ public final class DeadlinesContract {
         public static final String URGENT = "urgent";
         public static final String WORRYING = "worrying";
         public static final String NICE = "nice";
-        public static final String[] ALL = {TODAY, URGENT, WORRYING, NICE};
+        public static final String OVERDUE = "overdue";
+        public static final String NEVERMIND = "nevermind";
+        public static final String[] ALL = {TODAY, URGENT, WORRYING, NICE, OVERDUE, NEVERMIND};
     }
 
     public static final class Deadlines implements DeadlinesColumns {
@@ -40,6 +42,66 @@ public final class DeadlinesContract {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, TABLE_NAME);
         public static final String FILTER_ARCHIVED = "archived";
         public static final String FILTER_GROUP = "group";
+        /**
+         * Path segment followed by the text to search in labels and group names. Each word matches words starting
+         * with it, results come best match first. {@link #PARAM_LIMIT} caps the number of results. Coming after a
+         * {@link #FILTER_GROUP} segment and its group name, only the deadlines of that group are searched.
+         */
+        public static final String FILTER_SEARCH = "search";
+        /**
+         * Path segment of a set of deadlines given by ID in {@link #PARAM_IDS}. The whole set is queried, updated or
+         * deleted at once, in a single statement and transaction, notifying the lists, groups and count it touches.
+         */
+        public static final String FILTER_IDS = "ids";
+        /**
+         * Query parameter turning a list into a page of at most this many deadlines, sorted by due date then ID.
+         */
+        public static final String PARAM_LIMIT = "limit";
+        /**
+         * Query parameter giving the key of the last deadline of the previous page, as "due_date,_id".
+         */
+        public static final String PARAM_AFTER = "after";
+        /**
+         * Boolean query parameter to walk pages from the latest due date to the earliest.
+         */
+        public static final String PARAM_DESCENDING = "desc";
+        /**
+         * Query parameter listing deadline IDs separated by commas, see {@link #FILTER_IDS}.
+         */
+        public static final String PARAM_IDS = "ids";
+        /**
+         * Provider method moving the due dates of the deadlines not done of a scope by the number of days given as
+         * argument. The scope of set methods is given by {@link #EXTRA_GROUP} and {@link #EXTRA_LEVEL}, both
+         * optional, and each method runs as a single statement. The result holds {@link #EXTRA_COUNT}.
+         */
+        public static final String METHOD_POSTPONE = "deadlines_postpone";
+        /**
+         * Provider method marking the deadlines not done of a scope as done, see {@link #METHOD_POSTPONE}.
+         */
+        public static final String METHOD_COMPLETE = "deadlines_complete";
+        /**
+         * Provider method moving the deadlines of a scope to the group given as argument, see
+         * {@link #METHOD_POSTPONE}. An empty group stands for the default one. The scope is required
+         * here, at least one of {@link #EXTRA_GROUP} and {@link #EXTRA_LEVEL} must be given.
+         */
+        public static final String METHOD_MOVE = "deadlines_move";
+        /**
+         * Provider method deleting the archived deadlines of a scope due before the time given as argument, see
+         * {@link #METHOD_POSTPONE}.
+         */
+        public static final String METHOD_PURGE = "deadlines_purge";
+        /**
+         * Name of the group a set method is limited to.
+         */
+        public static final String EXTRA_GROUP = "group";
+        /**
+         * Level a set method is limited to, as an int. Deadlines belong to a level by their due date only.
+         */
+        public static final String EXTRA_LEVEL = "level";
+        /**
+         * Number of deadlines changed by a set method, as an int.
+         */
+        public static final String EXTRA_COUNT = "count";
         public static final int STATE_NOT_DONE = 0;
         public static final int STATE_DONE = 1;
         public static final int TYPE_ARCHIVED = 0;
@@ -55,7 +117,7 @@ public final class DeadlinesContract {
         public static final String[] ALL = {ID, LABEL, GROUP, DUE_DATE, DONE};
     }
 
-    public static final class Groups {
+    public static final class Groups implements GroupsColumns {
         /**
          * Not instantiable.
          */
@@ -66,4 +128,95 @@ public final class DeadlinesContract {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, TABLE_NAME);
     }
+
+    protected static interface GroupsColumns {
+        public static final String ID = "_id";
+        public static final String NAME = DeadlinesColumns.GROUP;
+        /**
+         * Number of deadlines of the group not done yet.
+         */
+        public static final String ACTIVE_COUNT = "active_count";
+        /**
+         * Number of deadlines of the group done, archived or not.
+         */
+        public static final String DONE_COUNT = "done_count";
+        public static final String[] ALL = {ID, NAME, ACTIVE_COUNT, DONE_COUNT};
+    }
+
+    /**
+     * Log of the writes on deadlines. Each row is the last write on a deadline since {@link #PARAM_SINCE}, along
+     * with the current values of the deadline (null once deleted).
+     */
+    public static final class Changes implements ChangesColumns {
+        /**
+         * Not instantiable.
+         */
+        private Changes() {
+        }
+
+        protected static String TABLE_NAME = "changes";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(Deadlines.CONTENT_URI, TABLE_NAME);
+        /**
+         * Query parameter, only changes with a greater sequence number are returned.
+         */
+        public static final String PARAM_SINCE = "since";
+        public static final int OP_INSERT = 1;
+        public static final int OP_UPDATE = 2;
+        public static final int OP_DELETE = 3;
+
+        /**
+         * Method returning the sequence number of the last change in {@link #EXTRA_SEQ}.
+         */
+        public static final String METHOD_LAST_SEQ = "changes_last_seq";
+        /**
+         * Method dropping the changes up to the sequence number given as argument, and the changes superseded by a
+         * later one on the same deadline. Returns the number of changes dropped in {@link #EXTRA_COUNT}.
+         */
+        public static final String METHOD_COMPACT = "changes_compact";
+        /**
+         * Method returning the ID of the database in {@link #EXTRA_DATABASE_ID}. It is random and positive, and
+         * changes whenever the database is created again, so IDs of deadlines only mean something along with it.
+         */
+        public static final String METHOD_DATABASE_ID = "changes_database_id";
+        public static final String EXTRA_SEQ = "seq";
+        public static final String EXTRA_COUNT = "count";
+        public static final String EXTRA_DATABASE_ID = "database_id";
+    }
+
+    protected static interface ChangesColumns {
+        public static final String SEQ = "seq";
+        public static final String DEADLINE_ID = "deadline_id";
+        /**
+         * Same as {@link #DEADLINE_ID}, so changes can be read like deadlines.
+         */
+        public static final String ID = DeadlinesColumns.ID;
+        public static final String OP = "op";
+        public static final String LABEL = DeadlinesColumns.LABEL;
+        public static final String GROUP = DeadlinesColumns.GROUP;
+        public static final String DUE_DATE = DeadlinesColumns.DUE_DATE;
+        public static final String DONE = DeadlinesColumns.DONE;
+        public static final String[] ALL = {SEQ, DEADLINE_ID, ID, OP, LABEL, GROUP, DUE_DATE, DONE};
+    }
+
+    /**
+     * Diagnostic counters, returned as longs by {@link android.content.ContentResolver#call}.
+     */
+    public static final class Stats {
+        /**
+         * Not instantiable.
+         */
+        private Stats() {
+        }
+
+        public static final String METHOD = "stats";
+        public static final String COUNT_CACHE_HITS = "count_cache_hits";
+        public static final String COUNT_CACHE_MISSES = "count_cache_misses";
+        /**
+         * Query SQL texts built, as opposed to taken from the cache of {@link #QUERY_SQL_REUSES}. Counts SQL text
+         * builds, not SQLite prepares: the connection keeps its own statement cache, which is not observable.
+         */
+        public static final String QUERY_SQL_BUILDS = "query_sql_builds";
+        public static final String QUERY_SQL_REUSES = "query_sql_reuses";
+    }
 }
@@ -1,21 +1,54 @@
 package com.jshevek.simpleDeadlines.ui;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
 import android.util.AttributeSet;
-import android.view.LayoutInflater;
-import android.widget.FrameLayout;
-import android.widget.TextView;
+import android.view.View;
 
 import com.jshevek.simpleDeadlines.R;
 import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
 
 /**
  * Provide a simple view to display a count of days.
+ * <p/>
+ * The colored box and the count are drawn directly, with the text appearance of the {@code day_count} style, so a
+ * counter is a single view whatever it shows.
  */
-public class DayCounterView extends FrameLayout {
-    private FrameLayout _backgroundLayout;
-    private TextView _countView;
+public class DayCounterView extends View {
+    /**
+     * Counts whose labels are kept once created, enough for overdue deadlines and a year ahead.
+     */
+    private static final int MIN_CACHED_COUNT = -99;
+    private static final int MAX_CACHED_COUNT = 366;
+    private static final String[] COUNT_LABELS = new String[MAX_CACHED_COUNT - MIN_CACHED_COUNT + 1];
+    /**
+     * Text appearance attributes read from the {@code day_count} style, in increasing order of ID.
+     */
+    private static final int[] TEXT_ATTRS = {
+            android.R.attr.textSize,
+            android.R.attr.textStyle,
+            android.R.attr.textColor
+    };
+    /**
+     * Widest label measured for wrapping the content.
+     */
+    private static final String WIDEST_LABEL = "-000";
+    /**
+     * Colors of the levels, in the order of {@link #levelIndex(int)}. They are resolved by each counter from its own
+     * context, so they follow its theme and configuration.
+     */
+    private final int[] _levelColors;
+    private final Paint _boxPaint = new Paint();
+    private final Paint _textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private String _label;
+    private float _baseline;
+    private int _contentWidth;
+    private int _contentHeight;
     private boolean _automaticBackground;
 
     public DayCounterView(Context context) {
@@ -25,18 +58,37 @@ public class DayCounterView extends FrameLayout {
     public DayCounterView(Context context, AttributeSet attrs) {
         super(context, attrs);
 
-        LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        inflater.inflate(R.layout.day_counter, this, true);
+        TypedArray style = context.obtainStyledAttributes(R.style.day_count, TEXT_ATTRS);
+        try {
+            _textPaint.setTextSize(style.getDimension(0, 0));
+            _textPaint.setTypeface(Typeface.defaultFromStyle(style.getInt(1, Typeface.NORMAL)));
+            _textPaint.setColor(style.getColor(2, Color.WHITE));
+        } finally {
+            style.recycle();
+        }
+        _textPaint.setTextAlign(Paint.Align.CENTER);
+        Paint.FontMetrics metrics = _textPaint.getFontMetrics();
+        _baseline = -(metrics.ascent + metrics.descent) / 2;
+        _contentWidth = (int) Math.ceil(_textPaint.measureText(WIDEST_LABEL));
+        _contentHeight = (int) Math.ceil(metrics.descent - metrics.ascent);
 
-        _backgroundLayout = (FrameLayout) getChildAt(0);
-        _countView = (TextView) _backgroundLayout.getChildAt(0);
+        Resources res = getResources();
+        _levelColors = new int[]{
+                res.getColor(R.color.today),
+                res.getColor(R.color.urgent),
+                res.getColor(R.color.worrying),
+                res.getColor(R.color.nice),
+                res.getColor(R.color.nevermind)
+        };
+
+        _boxPaint.setColor(res.getColor(R.color.archived));
+        _label = countLabel(0);
 
         TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.DayCounter);
         try {
             _automaticBackground = a.getBoolean(R.styleable.DayCounter_automaticBackground, true);
-            int bg = a.getInt(R.styleable.DayCounter_backgroundColor, -1);
-            if (bg != -1)
-                _backgroundLayout.setBackgroundColor(bg);
+            if (a.hasValue(R.styleable.DayCounter_backgroundColor))
+                setBoxColor(a.getColor(R.styleable.DayCounter_backgroundColor, 0));
 
             int lvl = a.getInt(R.styleable.DayCounter_level, 0);
             if (lvl != 0)
@@ -62,9 +114,13 @@ public class DayCounterView extends FrameLayout {
      * @param count Value to set.
      */
     public void setCount(int count) {
-        _countView.setText(String.valueOf(count));
+        String label = countLabel(count);
+        if (!label.equals(_label)) {
+            _label = label;
+            invalidate();
+        }
         if (_automaticBackground)
-            setLevel(DeadlinesUtils.dayCountToLvl(count));
+            setLevel(DeadlinesUtils.getLevelPolicy(getContext()).levelOf(count));
     }
 
     /**
@@ -82,6 +138,59 @@ public class DayCounterView extends FrameLayout {
      * @param lvl The level to set.
      */
     public void setLevel(int lvl) {
-        _backgroundLayout.setBackgroundResource(DeadlinesUtils.LVL_ALL.get(lvl));
+        setBoxColor(_levelColors[levelIndex(lvl)]);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = _contentWidth + getPaddingLeft() + getPaddingRight();
+        int height = _contentHeight + getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(resolveSize(Math.max(width, getSuggestedMinimumWidth()), widthMeasureSpec),
+                resolveSize(Math.max(height, getSuggestedMinimumHeight()), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int right = getWidth() - getPaddingRight();
+        int bottom = getHeight() - getPaddingBottom();
+
+        canvas.drawRect(left, top, right, bottom, _boxPaint);
+        canvas.drawText(_label, (left + right) / 2f, (top + bottom) / 2f + _baseline, _textPaint);
+    }
+
+    private void setBoxColor(int color) {
+        if (_boxPaint.getColor() != color) {
+            _boxPaint.setColor(color);
+            invalidate();
+        }
+    }
+
+    private static String countLabel(int count) {
+        if (count < MIN_CACHED_COUNT || count > MAX_CACHED_COUNT)
+            return String.valueOf(count);
+
+        int i = count - MIN_CACHED_COUNT;
+        if (COUNT_LABELS[i] == null)
+            COUNT_LABELS[i] = String.valueOf(count);
+        return COUNT_LABELS[i];
+    }
+
+    private static int levelIndex(int lvl) {
+        switch (lvl) {
+            case DeadlinesUtils.LVL_TODAY:
+                return 0;
+            case DeadlinesUtils.LVL_URGENT:
+                return 1;
+            case DeadlinesUtils.LVL_WORRYING:
+                return 2;
+            case DeadlinesUtils.LVL_NICE:
+                return 3;
+            case DeadlinesUtils.LVL_NEVERMIND:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Unknown level. {lvl: " + lvl + "}");
+        }
     }
 }
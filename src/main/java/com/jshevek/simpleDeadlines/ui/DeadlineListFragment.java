@@ -3,7 +3,6 @@ package com.jshevek.simpleDeadlines.ui;
 import android.app.AlertDialog;
 import android.content.*;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
@@ -14,7 +13,11 @@ import android.text.TextUtils;
 import android.view.*;
 import android.widget.*;
 import com.jshevek.simpleDeadlines.R;
+import com.jshevek.simpleDeadlines.core.Deadline;
+import com.jshevek.simpleDeadlines.core.ShareUriCodec;
 import com.jshevek.simpleDeadlines.data.DeadlineAdapter;
+import com.jshevek.simpleDeadlines.data.DeadlinePageLoader;
+import com.jshevek.simpleDeadlines.data.DeadlineRow;
 import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
 import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
 
@@ -25,17 +28,58 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
     private static final String TAG = DeadlineListFragment.class.getSimpleName();
     public static final String EXTRA_GROUP = TAG + ".group";
     public static final String EXTRA_TYPE = TAG + ".type";
+    public static final String EXTRA_SEARCH = TAG + ".search";
+    private static final int PAGE_SIZE = 100;
+    /**
+     * Number of rows left below the last visible one when the next page starts loading.
+     */
+    private static final int PAGE_PREFETCH = 20;
+    /**
+     * Number of search results shown, the best matches come first.
+     */
+    private static final int SEARCH_LIMIT = 100;
+    /**
+     * Tokens of the selection actions run by {@link #_queryHandler}.
+     */
+    private static final int TOKEN_SHARE = 1;
+    private static final int TOKEN_GROUP = 2;
+    private static final int TOKEN_DELETE = 3;
     private int _type;
-    private CursorAdapter _adapter;
+    /**
+     * Group the list is filtered on, kept while searching. Null for all groups.
+     */
+    private String _group;
+    private DeadlineAdapter _adapter;
+    /**
+     * Reads the first deadline shown, the list is read again from it when the deadlines change.
+     */
+    private final DeadlineRow _anchorRow = new DeadlineRow();
+    private AsyncQueryHandler _queryHandler;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         _type = getArguments().getInt(EXTRA_TYPE);
+        if (savedInstanceState != null)
+            _group = savedInstanceState.getString(EXTRA_GROUP);
         _adapter = new DeadlineAdapter(getActivity(), null, _type == DeadlinesContract.Deadlines.TYPE_ARCHIVED);
         setListAdapter(_adapter);
 
+        _queryHandler = new AsyncQueryHandler(getActivity().getContentResolver()) {
+            @Override
+            protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+                if (cursor == null)
+                    return;
+                try {
+                    if (token == TOKEN_SHARE && isAdded())
+                        share(cursor);
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+
         getLoaderManager().initLoader(0, getArguments(), this);
     }
 
@@ -51,6 +95,29 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
             }
         };
         getListView().setOnItemClickListener(listener);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount == 0)
+                    return;
+
+                Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                if (!(loader instanceof DeadlinePageLoader))
+                    return;
+
+                DeadlinePageLoader pageLoader = (DeadlinePageLoader) loader;
+                if (firstVisibleItem < totalItemCount) {
+                    DeadlineRow row = _anchorRow.setCursor((Cursor) _adapter.getItem(firstVisibleItem));
+                    pageLoader.setAnchor(row.dueDate(), row.id());
+                }
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH)
+                    pageLoader.loadNextPage();
+                if (firstVisibleItem < PAGE_PREFETCH)
+                    pageLoader.loadPreviousPage();
+            }
+        });
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         getListView().setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
             private List<Long> _selected;
@@ -77,26 +144,12 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
             }
 
             public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
-                final ContentResolver cr = getActivity().getContentResolver();
+                // The whole selection is handled at once, off the main thread.
+                final Uri selectionUri = DeadlinesUtils.idsToUri(_selected);
 
                 if (item.getItemId() == R.id.act_share) {
-                    String text = "";
-                    for (long id : _selected) {
-                        Cursor c = cr.query(ContentUris.withAppendedId(DeadlinesContract.Deadlines.CONTENT_URI, id), null,
-                                null, null, null);
-                        c.moveToFirst();
-                        ContentValues values = new ContentValues();
-                        DatabaseUtils.cursorRowToContentValues(c, values);
-                        text += (text.equals("") ? "" : "\n");
-                        text += DeadlinesUtils.contentValuesToShareUri(values);
-                    }
-
-                    Intent sendIntent = new Intent();
-                    sendIntent.setAction(Intent.ACTION_SEND);
-                    sendIntent.putExtra(Intent.EXTRA_TEXT, text);
-                    sendIntent.setType("text/plain");
-                    startActivity(sendIntent);
-
+                    _queryHandler.startQuery(TOKEN_SHARE, null, selectionUri, null, null, null,
+                            DeadlinesContract.Deadlines.DUE_DATE);
                     mode.finish();
                     return true;
                 } else if (item.getItemId() == R.id.act_group) {
@@ -108,10 +161,7 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
                             if (which == DialogInterface.BUTTON_POSITIVE) {
                                 ContentValues values = new ContentValues(1);
                                 values.put(DeadlinesContract.Deadlines.GROUP, tInput.getText().toString());
-
-                                for (long id : _selected)
-                                    cr.update(ContentUris.withAppendedId(DeadlinesContract.Deadlines.CONTENT_URI, id),
-                                            values, null, null);
+                                _queryHandler.startUpdate(TOKEN_GROUP, null, selectionUri, values, null, null);
                             }
 
                             dialog.dismiss();
@@ -127,9 +177,7 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
 
                     return true;
                 } else if (item.getItemId() == R.id.act_delete) {
-                    for (long id : _selected)
-                        cr.delete(ContentUris.withAppendedId(DeadlinesContract.Deadlines.CONTENT_URI, id),
-                                null, null);
+                    _queryHandler.startDelete(TOKEN_DELETE, null, selectionUri, null, null);
                     mode.finish();
                     return true;
                 }
@@ -145,14 +193,26 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
         setEmptyText(getString(R.string.empty_list));
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        _adapter.flushDone();
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        outState.putString(EXTRA_GROUP, _group);
+    }
+
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         Uri.Builder builder = DeadlinesContract.Deadlines.CONTENT_URI.buildUpon();
-        String order = "ASC";
+        boolean archived = _type == DeadlinesContract.Deadlines.TYPE_ARCHIVED;
 
-        if (_type == DeadlinesContract.Deadlines.TYPE_ARCHIVED){
+        if (archived)
             builder.appendPath(DeadlinesContract.Deadlines.FILTER_ARCHIVED);
-            order = "DESC";
-        }
 
         String group = args.getString(EXTRA_GROUP);
         if (!TextUtils.isEmpty(group)) {
@@ -160,24 +220,83 @@ public class DeadlineListFragment extends ListFragment implements LoaderCallback
             builder.appendPath(group);
         }
 
-        String orderBy = DeadlinesContract.Deadlines.DUE_DATE + " " + order;
-        return new CursorLoader(getActivity(), builder.build(), null, null, null, orderBy);
+        String search = args.getString(EXTRA_SEARCH);
+        if (!TextUtils.isEmpty(search)) {
+            builder.appendPath(DeadlinesContract.Deadlines.FILTER_SEARCH);
+            builder.appendPath(search);
+            builder.appendQueryParameter(DeadlinesContract.Deadlines.PARAM_LIMIT, String.valueOf(SEARCH_LIMIT));
+            return new CursorLoader(getActivity(), builder.build(), null, null, null, null);
+        }
+
+        // Archived deadlines keep piling up, the latest ones come first.
+        return new DeadlinePageLoader(getActivity(), builder.build(), PAGE_SIZE, archived);
     }
 
     public void onLoadFinished(Loader<Cursor> loader, Cursor c) {
+        if (getView() == null) {
+            _adapter.swapCursor(c);
+            return;
+        }
+
+        // The list keeps its first position, keep its first deadline instead when rows moved above it.
+        ListView list = getListView();
+        int first = list.getFirstVisiblePosition();
+        View top = list.getChildAt(0);
+        long firstId = top != null && first < _adapter.getCount() ? _adapter.getItemId(first) : ListView.INVALID_ROW_ID;
+
         _adapter.swapCursor(c);
+
+        if (firstId != ListView.INVALID_ROW_ID) {
+            // Reloads start a page before the first deadline shown, wherever it was.
+            int position = _adapter.findPosition(firstId, first, _adapter.getCount());
+            if (position != -1 && position != first)
+                list.setSelectionFromTop(position, top.getTop());
+        }
     }
 
     public void onLoaderReset(Loader<Cursor> loader) {
         _adapter.swapCursor(null);
     }
 
+    /**
+     * Share deadlines as text, one link per deadline.
+     */
+    private void share(Cursor c) {
+        ShareUriCodec codec = new ShareUriCodec();
+        Deadline deadline = new Deadline();
+        DeadlineRow row = new DeadlineRow(c);
+        StringBuilder text = new StringBuilder();
+        while (c.moveToNext()) {
+            if (text.length() > 0)
+                text.append('\n');
+            codec.encode(row.toDeadline(deadline), text);
+        }
+
+        Intent sendIntent = new Intent();
+        sendIntent.setAction(Intent.ACTION_SEND);
+        sendIntent.putExtra(Intent.EXTRA_TEXT, text.toString());
+        sendIntent.setType("text/plain");
+        startActivity(sendIntent);
+    }
+
     public void setGroupFilter(String group) {
+        _group = group;
         Bundle args = new Bundle();
         args.putString(EXTRA_GROUP, group);
         getLoaderManager().restartLoader(0, args, this);
     }
 
+    /**
+     * Show the deadlines matching a text instead of the whole list, or the whole list again if the text is empty.
+     * Either way, the list stays filtered on its group.
+     */
+    public void setSearchFilter(String text) {
+        Bundle args = new Bundle();
+        args.putString(EXTRA_GROUP, _group);
+        args.putString(EXTRA_SEARCH, text);
+        getLoaderManager().restartLoader(0, args, this);
+    }
+
     public static DeadlineListFragment newInstance(int type) {
         Bundle args = new Bundle();
         args.putInt(EXTRA_TYPE, type);
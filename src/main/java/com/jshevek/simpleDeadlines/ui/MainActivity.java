@@ -1,7 +1,9 @@
 package com.jshevek.simpleDeadlines.ui;
 
+import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.app.ProgressDialog;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -9,6 +11,7 @@ import android.content.Loader;
 import android.content.res.Configuration;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.app.FragmentActivity;
@@ -20,7 +23,9 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -30,6 +35,14 @@ import com.jshevek.simpleDeadlines.data.GroupAdapter;
 import com.jshevek.simpleDeadlines.provider.DeadlinesContract;
 
 public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cursor> {
+    /**
+     * Positions of the group actions, following {@code R.array.act_group_list}.
+     */
+    private static final int GROUP_ACT_POSTPONE_DAY = 0;
+    private static final int GROUP_ACT_POSTPONE_WEEK = 1;
+    private static final int GROUP_ACT_COMPLETE = 2;
+    private static final int GROUP_ACT_MOVE = 3;
+    private static final int GROUP_ACT_PURGE = 4;
     private String[] _TITLES;
     private DrawerLayout _drawerLayout;
     private ActionBarDrawerToggle _drawerToggle;
@@ -38,6 +51,8 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
     private ViewPager _pager;
     private DeadlinePagerAdapter _pagerAdapter;
     private int _currentGroupIdx;
+    private MenuItem _searchItem;
+    private RecoverTask _recoverTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -66,12 +81,20 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
                 TextView label = (TextView) view.findViewById(R.id.group);
                 DeadlineListFragment frag = (DeadlineListFragment) _pagerAdapter.getItem(_pager.getCurrentItem());
 
+                collapseSearch();
                 _groupList.setItemChecked(position, !wasSelected);
                 _currentGroupIdx = _groupList.getCheckedItemPosition();
                 frag.setGroupFilter(wasSelected ? null : label.getText().toString());
                 _drawerLayout.closeDrawers();
             }
         });
+        _groupList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+                TextView label = (TextView) view.findViewById(R.id.group);
+                showGroupActions(label.getText().toString());
+                return true;
+            }
+        });
         _groupList.setAdapter(_groupAdapter);
 
         _pager = (ViewPager) findViewById(R.id.pager);
@@ -81,6 +104,7 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
             @Override
             public void onPageSelected(int position) {
                 getActionBar().setTitle(_TITLES[position]);
+                collapseSearch();
                 _currentGroupIdx = ListView.INVALID_POSITION;
                 ((DeadlineListFragment) _pagerAdapter.getItem(position)).setGroupFilter(null);
                 getLoaderManager().restartLoader(position, null, MainActivity.this);
@@ -97,9 +121,8 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
             builder.setMessage(R.string.msg_confirm_recover);
             builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int which) {
-                    int count = DeadlinesUtils.performRecover(getApplicationContext(), backupUri);
-                    String msg = getString(R.string.msg_recover, count);
-                    Toast.makeText(MainActivity.this, msg, Toast.LENGTH_SHORT).show();
+                    _recoverTask = new RecoverTask(MainActivity.this);
+                    _recoverTask.execute(backupUri);
                 }
             });
             builder.setNegativeButton(android.R.string.no, null);
@@ -107,6 +130,13 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        if (_recoverTask != null)
+            _recoverTask.detach();
+        super.onDestroy();
+    }
+
     @Override
     protected void onPostCreate(Bundle savedInstanceState) {
         super.onPostCreate(savedInstanceState);
@@ -141,9 +171,42 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.deadlines, menu);
+
+        _searchItem = menu.findItem(R.id.act_search);
+        _searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                currentFragment().setSearchFilter(null);
+                return true;
+            }
+        });
+        SearchView searchView = (SearchView) _searchItem.getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            public boolean onQueryTextSubmit(String query) {
+                return true;
+            }
+
+            public boolean onQueryTextChange(String newText) {
+                if (_searchItem.isActionViewExpanded())
+                    currentFragment().setSearchFilter(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    private DeadlineListFragment currentFragment() {
+        return (DeadlineListFragment) _pagerAdapter.getItem(_pager.getCurrentItem());
+    }
+
+    private void collapseSearch() {
+        if (_searchItem != null && _searchItem.isActionViewExpanded())
+            _searchItem.collapseActionView();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (_drawerToggle.onOptionsItemSelected(item))
@@ -163,4 +226,168 @@ public class MainActivity extends FragmentActivity implements LoaderCallbacks<Cu
         }
         return true;
     }
+
+    /**
+     * Offer the actions changing every deadline of a group at once.
+     */
+    private void showGroupActions(final String group) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(group);
+        builder.setItems(R.array.act_group_list, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                switch (which) {
+                    case GROUP_ACT_POSTPONE_DAY:
+                        new GroupTask(MainActivity.this, group)
+                                .execute(DeadlinesContract.Deadlines.METHOD_POSTPONE, "1");
+                        break;
+                    case GROUP_ACT_POSTPONE_WEEK:
+                        new GroupTask(MainActivity.this, group)
+                                .execute(DeadlinesContract.Deadlines.METHOD_POSTPONE, "7");
+                        break;
+                    case GROUP_ACT_COMPLETE:
+                        new GroupTask(MainActivity.this, group)
+                                .execute(DeadlinesContract.Deadlines.METHOD_COMPLETE, null);
+                        break;
+                    case GROUP_ACT_MOVE:
+                        showMoveGroup(group);
+                        break;
+                    case GROUP_ACT_PURGE:
+                        showPurgeGroup(group);
+                        break;
+                }
+            }
+        });
+        builder.show();
+    }
+
+    private void showMoveGroup(final String group) {
+        final EditText tInput = new EditText(this);
+        tInput.setSingleLine();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.hint_group);
+        builder.setView(tInput);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                new GroupTask(MainActivity.this, group)
+                        .execute(DeadlinesContract.Deadlines.METHOD_MOVE, tInput.getText().toString());
+            }
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.show();
+    }
+
+    private void showPurgeGroup(final String group) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(getString(R.string.msg_confirm_purge, group));
+        builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                new GroupTask(MainActivity.this, group).execute(DeadlinesContract.Deadlines.METHOD_PURGE,
+                        String.valueOf(System.currentTimeMillis()));
+            }
+        });
+        builder.setNegativeButton(android.R.string.no, null);
+        builder.show();
+    }
+
+    /**
+     * Run a set method on a group off the main thread, then tell how many deadlines changed.
+     */
+    private static class GroupTask extends AsyncTask<String, Void, Integer> {
+        private final Activity _activity;
+        private final String _group;
+
+        public GroupTask(Activity activity, String group) {
+            _activity = activity;
+            _group = group;
+        }
+
+        /**
+         * @param params The method, then its argument.
+         */
+        @Override
+        protected Integer doInBackground(String... params) {
+            return DeadlinesUtils.applyToGroup(_activity.getApplicationContext(), params[0], params[1], _group);
+        }
+
+        @Override
+        protected void onPostExecute(Integer count) {
+            if (_activity.isFinishing())
+                return;
+            Toast.makeText(_activity, _activity.getString(R.string.msg_set_changed, count), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Add the deadlines of a backup file off the main thread, then sum up what was added.
+     */
+    private static class RecoverTask extends AsyncTask<Uri, Integer, DeadlinesUtils.RecoverResult>
+            implements DeadlinesUtils.ProgressListener {
+        private final Activity _activity;
+        private final ProgressDialog _dialog;
+        private boolean _detached;
+
+        public RecoverTask(Activity activity) {
+            _activity = activity;
+            _dialog = new ProgressDialog(activity);
+            _dialog.setMessage(activity.getString(R.string.msg_recovering));
+            _dialog.setIndeterminate(true);
+            _dialog.setCancelable(false);
+        }
+
+        public void onProgress(int done, int total) {
+            publishProgress(done);
+        }
+
+        /**
+         * Let go of the activity being destroyed: its dialog is dismissed, the restore goes on.
+         */
+        public void detach() {
+            _detached = true;
+            dismissDialog();
+        }
+
+        @Override
+        protected void onPreExecute() {
+            _dialog.show();
+        }
+
+        @Override
+        protected DeadlinesUtils.RecoverResult doInBackground(Uri... params) {
+            return DeadlinesUtils.performRecover(_activity.getApplicationContext(), params[0],
+                    DeadlinesUtils.RECOVER_BATCH_SIZE, this);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (!_detached)
+                _dialog.setMessage(_activity.getString(R.string.msg_recovering) + " " + values[0]);
+        }
+
+        @Override
+        protected void onCancelled(DeadlinesUtils.RecoverResult result) {
+            dismissDialog();
+        }
+
+        @Override
+        protected void onPostExecute(DeadlinesUtils.RecoverResult result) {
+            dismissDialog();
+            if (_detached || _activity.isFinishing())
+                return;
+
+            String msg;
+            if (result.Rejected > 0)
+                msg = _activity.getString(R.string.msg_recover_rejected, result.Inserted, result.Rejected);
+            else if (result.Deleted > 0)
+                msg = _activity.getString(R.string.msg_recover_deleted, result.Inserted, result.Deleted);
+            else
+                msg = _activity.getString(R.string.msg_recover, result.Inserted);
+            Toast.makeText(_activity, msg, Toast.LENGTH_LONG).show();
+        }
+
+        private void dismissDialog() {
+            if (_dialog.isShowing())
+                _dialog.dismiss();
+        }
+    }
 }
@@ -1,20 +1,45 @@
 package com.jshevek.simpleDeadlines.ui;
 
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
+import android.preference.PreferenceManager;
 import android.util.Log;
+import android.widget.Toast;
 
 import com.jshevek.simpleDeadlines.NotificationCenter;
 import com.jshevek.simpleDeadlines.R;
+import com.jshevek.simpleDeadlines.core.LevelPolicy;
 import com.jshevek.simpleDeadlines.data.DeadlinesUtils;
 
 public class Settings extends PreferenceActivity {
     private static final String TAG = "Settings";
+    private static final int REQUEST_BACKUP = 1;
+    private BackupTask _backupTask;
+    private static final int[] LEVELS = {
+            DeadlinesUtils.LVL_TODAY,
+            DeadlinesUtils.LVL_URGENT,
+            DeadlinesUtils.LVL_WORRYING,
+            DeadlinesUtils.LVL_NICE
+    };
+    private static final int[] LEVEL_KEYS = {
+            R.string.pref_key_level_today,
+            R.string.pref_key_level_urgent,
+            R.string.pref_key_level_worrying,
+            R.string.pref_key_level_nice
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -45,14 +70,30 @@ public class Settings extends PreferenceActivity {
                     }
                 });
 
+                Preference.OnPreferenceChangeListener levelListener = new Preference.OnPreferenceChangeListener() {
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        LevelPolicy policy = levelPolicyWith(Settings.this, preference.getKey(), (String) newValue);
+                        if (policy == null) {
+                            Toast.makeText(Settings.this,
+                                    getString(R.string.msg_levels_invalid, LevelPolicy.MAX_THRESHOLD),
+                                    Toast.LENGTH_SHORT).show();
+                            return false;
+                        }
+
+                        DeadlinesUtils.setLevelPolicy(Settings.this, policy);
+                        setLevelSummaries(getPreferenceManager(), policy);
+                        return true;
+                    }
+                };
+                for (int key : LEVEL_KEYS)
+                    findPreference(getString(key)).setOnPreferenceChangeListener(levelListener);
+                setLevelSummaries(getPreferenceManager(), DeadlinesUtils.getLevelPolicy(Settings.this));
+
                 Preference prefBackup = findPreference(getString(R.string.pref_key_backup_do));
                 prefBackup.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
                     public boolean onPreferenceClick(Preference preference) {
-                        Intent i = new Intent();
-                        i.setAction(Intent.ACTION_SEND);
-                        i.setType("text/plain");
-                        i.putExtra(Intent.EXTRA_STREAM, DeadlinesUtils.performBackup(getApplicationContext()));
-                        startActivity(i);
+                        _backupTask = new BackupTask(Settings.this);
+                        _backupTask.execute();
                         return true;
                     }
                 });
@@ -71,4 +112,187 @@ public class Settings extends PreferenceActivity {
                 .replace(android.R.id.content, frag)
                 .commit();
     }
+
+    @Override
+    protected void onDestroy() {
+        if (_backupTask != null)
+            _backupTask.detach();
+        super.onDestroy();
+    }
+
+    /**
+     * The backup has been handed to another application. Not every application reports whether it kept it, so ask
+     * when it does not say so.
+     */
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != REQUEST_BACKUP) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+
+        if (resultCode == RESULT_OK) {
+            confirmBackup();
+            return;
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.msg_confirm_backup);
+        builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                confirmBackup();
+            }
+        });
+        builder.setNegativeButton(android.R.string.no, null);
+        builder.show();
+    }
+
+    /**
+     * Record the backup waiting for delivery, if any.
+     */
+    private void confirmBackup() {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        String pendingKey = getString(R.string.pref_key_backup_pending_seq);
+        long seq = sp.getLong(pendingKey, -1);
+        if (seq < 0)
+            return;
+
+        sp.edit().remove(pendingKey).apply();
+        new ConfirmBackupTask(getApplicationContext()).execute(seq);
+    }
+
+    private void setLevelSummaries(PreferenceManager manager, LevelPolicy policy) {
+        for (int i = 0; i < LEVELS.length; ++i) {
+            Preference pref = manager.findPreference(getString(LEVEL_KEYS[i]));
+            pref.setSummary(getString(R.string.pref_sum_level, policy.thresholdOf(LEVELS[i])));
+        }
+    }
+
+    /**
+     * Level policy from the saved thresholds, but one being changed.
+     *
+     * @param key   Key of the threshold being changed.
+     * @param value New value of the threshold, as typed.
+     * @return The new policy, null if the thresholds are not valid.
+     */
+    private static LevelPolicy levelPolicyWith(Context context, String key, String value) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        int[] thresholds = new int[LEVELS.length];
+
+        try {
+            for (int i = 0; i < LEVELS.length; ++i) {
+                if (context.getString(LEVEL_KEYS[i]).equals(key))
+                    thresholds[i] = Integer.parseInt(value.trim());
+                else
+                    thresholds[i] = DeadlinesUtils.readLevelThreshold(sp, context, LEVEL_KEYS[i], LEVELS[i]);
+            }
+            return new LevelPolicy(thresholds[0], thresholds[1], thresholds[2], thresholds[3]);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the backup off the main thread, then offer to share it. It is only recorded once delivered, see
+     * {@link #onActivityResult(int, int, Intent)}.
+     */
+    private static class BackupTask extends AsyncTask<Void, Integer, Uri>
+            implements DeadlinesUtils.ProgressListener {
+        private final Activity _activity;
+        private final ProgressDialog _dialog;
+        private final SharedPreferences _prefs;
+        private final boolean _binary;
+        private final boolean _incremental;
+        private long _seq;
+        private boolean _detached;
+
+        public BackupTask(Activity activity) {
+            _activity = activity;
+            _prefs = PreferenceManager.getDefaultSharedPreferences(activity);
+            _binary = _prefs.getBoolean(activity.getString(R.string.pref_key_backup_binary), false);
+            _incremental = _prefs.getBoolean(activity.getString(R.string.pref_key_backup_incremental), false);
+            _dialog = new ProgressDialog(activity);
+            _dialog.setMessage(activity.getString(R.string.msg_backup));
+            _dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            _dialog.setCancelable(false);
+        }
+
+        public void onProgress(int done, int total) {
+            publishProgress(done, total);
+        }
+
+        /**
+         * Let go of the activity being destroyed: its dialog is dismissed, the backup is written but not shared.
+         */
+        public void detach() {
+            _detached = true;
+            dismissDialog();
+        }
+
+        @Override
+        protected void onPreExecute() {
+            _dialog.show();
+        }
+
+        @Override
+        protected Uri doInBackground(Void... params) {
+            Context context = _activity.getApplicationContext();
+            String seqKey = context.getString(R.string.pref_key_backup_seq);
+            long since = _incremental ? _prefs.getLong(seqKey, -1) : -1;
+
+            _seq = DeadlinesUtils.lastChangeSeq(context);
+            return DeadlinesUtils.performBackup(context, _binary, since, _seq, this);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (_detached)
+                return;
+            _dialog.setMax(values[1]);
+            _dialog.setProgress(values[0]);
+        }
+
+        @Override
+        protected void onCancelled(Uri uri) {
+            dismissDialog();
+        }
+
+        @Override
+        protected void onPostExecute(Uri uri) {
+            dismissDialog();
+            if (_detached || _activity.isFinishing())
+                return;
+
+            if (Uri.EMPTY.equals(uri)) {
+                Toast.makeText(_activity, R.string.msg_backup_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            Intent i = new Intent();
+            i.setAction(Intent.ACTION_SEND);
+            i.setType(_binary ? "application/octet-stream" : "text/plain");
+            i.putExtra(Intent.EXTRA_STREAM, uri);
+            _prefs.edit().putLong(_activity.getString(R.string.pref_key_backup_pending_seq), _seq).apply();
+            _activity.startActivityForResult(i, REQUEST_BACKUP);
+        }
+
+        private void dismissDialog() {
+            if (_dialog.isShowing())
+                _dialog.dismiss();
+        }
+    }
+
+    private static class ConfirmBackupTask extends AsyncTask<Long, Void, Void> {
+        private final Context _context;
+
+        public ConfirmBackupTask(Context context) {
+            _context = context;
+        }
+
+        @Override
+        protected Void doInBackground(Long... params) {
+            DeadlinesUtils.confirmBackup(_context, params[0]);
+            return null;
+        }
+    }
 }